@@ -9,6 +9,7 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -37,6 +38,7 @@ public class MainActivity extends AppCompatActivity
     private ProgressBar pDialog;
     private ArrayList<String> mImageList;
     private static final String GET_IMAGE_URL = "https://api.unsplash.com/photos/?client_id=fe4063ed4beedc07c62f05d8daa3a9d6649f2b8d8dd4ada579ba18e6ca4fa453&per_page=30";
+    private static final int PRELOAD_COUNT = 6;
     private String[] mPermissions = {Manifest.permission.READ_EXTERNAL_STORAGE, Manifest.permission.WRITE_EXTERNAL_STORAGE};
 
     @Override
@@ -68,6 +70,19 @@ public class MainActivity extends AppCompatActivity
             mRecyclerView = findViewById(R.id.recyclerView);
             mRecyclerView.setLayoutManager(new GridLayoutManager(this, 2));
             mRecyclerView.setAdapter(new ListAdapter(mImageList, this));
+
+            // Cells are sized by the grid, the preloader is added once the first one is laid out
+            mRecyclerView.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+                @Override
+                public void onGlobalLayout() {
+                    View cell = mRecyclerView.getChildCount() > 0 ? mRecyclerView.getChildAt(0).findViewById(R.id.image_view) : null;
+                    if (cell == null || cell.getWidth() <= 0 || cell.getHeight() <= 0)
+                        return;
+
+                    mRecyclerView.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+                    addPreloader(cell.getWidth(), cell.getHeight());
+                }
+            });
         }
         catch (Exception e)
         {
@@ -75,6 +90,24 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
+    /**
+     * Fetch the next rows in the scroll direction before they are bound, decoded for the cells so
+     * they are memory cache hits
+     *
+     * @param cellWidth
+     * @param cellHeight
+     */
+    private void addPreloader(int cellWidth, int cellHeight)
+    {
+        mRecyclerView.addOnScrollListener(new RecyclerViewPreloader(ImageLoader.with(this),
+                new RecyclerViewPreloader.UrlProvider() {
+                    @Override
+                    public String getImageUrl(int position) {
+                        return position < mImageList.size() ? mImageList.get(position) : null;
+                    }
+                }, PRELOAD_COUNT, cellWidth, cellHeight, true));
+    }
+
     /**
      *
      */
@@ -214,7 +247,7 @@ public class MainActivity extends AppCompatActivity
             ImageView imageView = view.findViewById(R.id.image_view_full_screen);
             ImageButton buttonClose = view.findViewById(R.id.button_close_image);
 
-            ImageLoader.with(mContext).load(imageView, url);
+            ImageLoader.with(mContext).load(imageView, url, ImageLoader.Priority.HIGH, true);
             imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
 
             final android.app.AlertDialog alertDialog = builder.create();
@@ -0,0 +1,57 @@
+package com.example.gse.imageloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Temporary cache directories and deterministic payloads shared by the benchmarks
+ */
+final class BenchmarkFiles
+{
+    // Same bytes and keys on every run
+    private static final long SEED = 42;
+
+    private BenchmarkFiles()
+    {
+    }
+
+    /**
+     * A new directory per trial, SimpleDiskCache refuses to open a directory twice in a process
+     *
+     * @return
+     * @throws IOException
+     */
+    static File newCacheDir() throws IOException
+    {
+        return Files.createTempDirectory("imageloader-benchmark").toFile();
+    }
+
+    static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    static byte[] payload(int size)
+    {
+        byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+
+    static String[] urls(int count)
+    {
+        Random random = new Random(SEED);
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++)
+            urls[i] = "https://images.example.com/photos/" + Long.toHexString(random.nextLong()) + ".jpg?w=1080";
+        return urls;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.gse.imageloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Worker threads hitting one SimpleDiskCache at once, as the disk and network pools do during a
+ * fling: three writes of new entries to every check and read. JMH fixes the thread count of a
+ * benchmark method at compile time, so each invocation hands a batch of operations to a pool of
+ * the parameterized size instead.
+ *
+ * The striped run is SimpleDiskCache as it is, writers of keys in different stripes proceed in
+ * parallel. The global run puts every write behind one lock, as ImageLoader's single disk cache
+ * monitor did, the baseline the stripes are measured against. Each worker replays its own seeded
+ * sequence of keys, the same in both runs.
+ *
+ * The lookup benchmark only checks whether entries exist, as the disk stage and the variant
+ * checks do, with no writer in the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DiskCacheContentionBenchmark
+{
+    private static final int ENTRIES = 256;
+    private static final int ENTRY_SIZE = 32 * 1024;
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+    // Divides evenly between 2, 5 and 16 workers
+    private static final int BATCH = 80;
+    private static final long SEED = 42;
+    // Existence checks are far shorter than writes, enough of them to outweigh handing out the batch
+    private static final int LOOKUP_ROUNDS = 1000;
+
+    // ImageLoader's disk and network threads, and a pool well past the core count
+    @Param({"2", "5", "16"})
+    public int workers;
+
+    @Param({"striped", "global"})
+    public String locking;
+
+    private File dir;
+    private SimpleDiskCache diskCache;
+    private String[] urls;
+    private byte[] payload;
+    private ExecutorService pool;
+    private List<Callable<Void>> tasks;
+    private List<Callable<Void>> lookupTasks;
+    private final ReentrantLock globalLock = new ReentrantLock();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        dir = BenchmarkFiles.newCacheDir();
+        diskCache = SimpleDiskCache.open(dir, 1, MAX_SIZE);
+        urls = BenchmarkFiles.urls(ENTRIES);
+        payload = BenchmarkFiles.payload(ENTRY_SIZE);
+
+        for (String url : urls)
+            diskCache.put(url, new ByteArrayInputStream(payload));
+
+        pool = Executors.newFixedThreadPool(workers);
+        final boolean global = locking.equals("global");
+        final int operations = BATCH / workers;
+        tasks = new ArrayList<>();
+        lookupTasks = new ArrayList<>();
+        for (int i = 0; i < workers; i++)
+        {
+            final String[] keys = new String[operations];
+            Random random = new Random(SEED + i);
+            for (int j = 0; j < operations; j++)
+                keys[j] = urls[random.nextInt(ENTRIES)];
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int j = 0; j < operations; j++)
+                    {
+                        if (j % 4 == 0)
+                            read(keys[j]);
+                        else
+                            write(keys[j], global);
+                    }
+                    return null;
+                }
+            });
+
+            lookupTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int round = 0; round < LOOKUP_ROUNDS; round++)
+                    {
+                        for (String key : keys)
+                            diskCache.contains(key);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException
+    {
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        diskCache.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    /**
+     * Disk stage, reads take no lock either way
+     */
+    private void read(String url) throws IOException
+    {
+        if (!diskCache.contains(url))
+            return;
+
+        SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream(url);
+        if (entry == null)
+            return;
+        try {
+            entry.getMetadata();
+            entry.getInputStream().read();
+        }
+        finally {
+            entry.close();
+        }
+    }
+
+    /**
+     * Network stage, a writer of a key whose stripe is held waits for it
+     */
+    private void write(String url, boolean global) throws IOException
+    {
+        if (global)
+            globalLock.lock();
+        try {
+            diskCache.put(url, new ByteArrayInputStream(payload));
+        }
+        finally {
+            if (global)
+                globalLock.unlock();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void fling() throws InterruptedException, ExecutionException
+    {
+        for (Future<Void> result : pool.invokeAll(tasks))
+            result.get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH * LOOKUP_ROUNDS)
+    public void lookups() throws InterruptedException, ExecutionException
+    {
+        for (Future<Void> result : pool.invokeAll(lookupTasks))
+            result.get();
+    }
+}
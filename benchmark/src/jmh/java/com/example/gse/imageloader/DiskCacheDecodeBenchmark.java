@@ -0,0 +1,176 @@
+package com.example.gse.imageloader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A disk cache hit decoded the way ImageLoader's disk stage does it, SimpleDiskCache.getBitmap
+ * with the bounds pass, sample size, config policy and the read of either engine, through a
+ * BitmapDecoder that decodes with ImageIO instead of BitmapFactory. Times the JVM JPEG decoder,
+ * not Skia, so compare runs with each other and not with a device. ImageIO subsamples after
+ * decoding every block where Skia scales in the DCT, the sample size saves less here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiskCacheDecodeBenchmark
+{
+    private static final int ENTRIES = 16;
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+    // Grid cell
+    private static final int REQUESTED_SIZE = 256;
+
+    /**
+     * BitmapFactory semantics on ImageIO: bounds into the out fields, inSampleSize as source
+     * subsampling. There is no Bitmap to return on the JVM, the decoded image is kept instead.
+     */
+    static class ImageIODecoder implements BitmapDecoder
+    {
+        volatile BufferedImage lastDecoded;
+
+        @Override
+        public Bitmap decode(FileDescriptor fd, byte[] data, BitmapFactory.Options options) throws IOException
+        {
+            if (fd == null)
+                return decode(new ByteArrayInputStream(data), options);
+
+            // Like decodeFileDescriptor, read from the start and leave the offset where it was.
+            // Not closed, that would close the snapshot's descriptor.
+            FileChannel channel = new FileInputStream(fd).getChannel();
+            long position = channel.position();
+            try {
+                channel.position(0);
+                return decode(Channels.newInputStream(channel), options);
+            }
+            finally {
+                channel.position(position);
+            }
+        }
+
+        private Bitmap decode(InputStream in, BitmapFactory.Options options) throws IOException
+        {
+            ImageInputStream imageInput = ImageIO.createImageInputStream(in);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                if (options.inJustDecodeBounds)
+                {
+                    options.outWidth = reader.getWidth(0);
+                    options.outHeight = reader.getHeight(0);
+                    options.outMimeType = "image/" + reader.getFormatName().toLowerCase();
+                    return null;
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int sampleSize = Math.max(1, options.inSampleSize);
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                lastDecoded = reader.read(0, param);
+                return null;
+            }
+            finally {
+                reader.dispose();
+                imageInput.close();
+            }
+        }
+    }
+
+    @Param({"DISK_LRU_CACHE", "PACK_FILE"})
+    public SimpleDiskCache.Engine engine;
+
+    // Longest edge of the cached photo
+    @Param({"1024", "3072"})
+    public int imageSize;
+
+    private File dir;
+    private SimpleDiskCache diskCache;
+    private ImageIODecoder decoder;
+    private String[] urls;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        // No temporary files behind the image streams
+        ImageIO.setUseCache(false);
+
+        dir = BenchmarkFiles.newCacheDir();
+        diskCache = SimpleDiskCache.open(dir, 1, MAX_SIZE, engine);
+        decoder = new ImageIODecoder();
+        diskCache.setBitmapDecoder(decoder);
+        urls = BenchmarkFiles.urls(ENTRIES);
+
+        byte[] jpeg = jpeg(imageSize, imageSize * 3 / 4);
+        for (String url : urls)
+            diskCache.put(url, new ByteArrayInputStream(jpeg));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        diskCache.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    /**
+     * A photo-like gradient, the same bytes on every run
+     */
+    private static byte[] jpeg(int width, int height) throws IOException
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(0x3366cc), width, height, new Color(0xffcc33)));
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(Color.WHITE);
+        for (int i = 0; i < width; i += 32)
+            graphics.drawLine(i, 0, width - i, height);
+        graphics.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bytes);
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException
+    {
+        next = (next + 1) % ENTRIES;
+        diskCache.getBitmap(urls[next], REQUESTED_SIZE, REQUESTED_SIZE, DecodeConfigPolicy.ARGB_8888, null);
+        return decoder.lastDecoded;
+    }
+}
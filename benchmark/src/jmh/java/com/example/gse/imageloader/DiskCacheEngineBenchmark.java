@@ -0,0 +1,100 @@
+package com.example.gse.imageloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SimpleDiskCache engines holding a grid worth of small thumbnails, put, get and contains
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DiskCacheEngineBenchmark
+{
+    private static final int ENTRIES = 2000;
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+
+    @Param({"DISK_LRU_CACHE", "PACK_FILE"})
+    public SimpleDiskCache.Engine engine;
+
+    @Param({"5120", "20480"})
+    public int entrySize;
+
+    private File dir;
+    private SimpleDiskCache diskCache;
+    private String[] urls;
+    private byte[] payload;
+    private byte[] readBuffer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        dir = BenchmarkFiles.newCacheDir();
+        diskCache = SimpleDiskCache.open(dir, 1, MAX_SIZE, engine);
+        urls = BenchmarkFiles.urls(ENTRIES);
+        payload = BenchmarkFiles.payload(entrySize);
+        readBuffer = new byte[8 * 1024];
+
+        for (String url : urls)
+            diskCache.put(url, new ByteArrayInputStream(payload));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        diskCache.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    private String nextUrl()
+    {
+        next = (next + 1) % ENTRIES;
+        return urls[next];
+    }
+
+    @Benchmark
+    public void put() throws IOException
+    {
+        diskCache.put(nextUrl(), new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * Reads the whole value, as the decoder would
+     */
+    @Benchmark
+    public void get(Blackhole blackhole) throws IOException
+    {
+        SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream(nextUrl());
+        try {
+            InputStream in = entry.getInputStream();
+            int count;
+            while ((count = in.read(readBuffer)) != -1)
+                blackhole.consume(count);
+        }
+        finally {
+            entry.close();
+        }
+    }
+
+    @Benchmark
+    public boolean contains() throws IOException
+    {
+        return diskCache.contains(nextUrl());
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.gse.imageloader;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a disk cache hit by the way the value is read: through the entry InputStream, a
+ * positional read of its FileChannel, or a read-only mapping, each into the byte array the decoder
+ * and the encoded memory cache take. fileDescriptor is only the lookup up to the descriptor that
+ * BitmapFactory.decodeFileDescriptor reads from natively, the floor of any hit.
+ *
+ * Run with -prof gc for the garbage per hit, gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiskCacheReadBenchmark
+{
+    private static final int ENTRIES = 64;
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+
+    // Grid thumbnail, medium JPEG, full screen photo
+    @Param({"16384", "131072", "1048576"})
+    public int entrySize;
+
+    private File dir;
+    private SimpleDiskCache diskCache;
+    private String[] urls;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        dir = BenchmarkFiles.newCacheDir();
+        diskCache = SimpleDiskCache.open(dir, 1, MAX_SIZE);
+        urls = BenchmarkFiles.urls(ENTRIES);
+        byte[] payload = BenchmarkFiles.payload(entrySize);
+
+        for (String url : urls)
+            diskCache.put(url, new ByteArrayInputStream(payload));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        diskCache.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    private SimpleDiskCache.InputStreamEntry nextEntry() throws IOException
+    {
+        next = (next + 1) % ENTRIES;
+        return diskCache.getInputStream(urls[next]);
+    }
+
+    @Benchmark
+    public byte[] stream() throws IOException
+    {
+        SimpleDiskCache.InputStreamEntry entry = nextEntry();
+        try {
+            return IOUtils.toByteArray(entry.getInputStream(), entry.getLength());
+        }
+        finally {
+            entry.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] channel() throws IOException
+    {
+        SimpleDiskCache.InputStreamEntry entry = nextEntry();
+        try {
+            FileChannel channel = entry.getChannel();
+            byte[] data = new byte[(int) entry.getLength()];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, buffer.position()) < 0)
+                    throw new IOException("Truncated value");
+            }
+            return data;
+        }
+        finally {
+            entry.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] map() throws IOException
+    {
+        SimpleDiskCache.InputStreamEntry entry = nextEntry();
+        try {
+            ByteBuffer mapped = entry.map();
+            byte[] data = new byte[mapped.remaining()];
+            mapped.get(data);
+            return data;
+        }
+        finally {
+            entry.close();
+        }
+    }
+
+    @Benchmark
+    public FileDescriptor fileDescriptor() throws IOException
+    {
+        SimpleDiskCache.InputStreamEntry entry = nextEntry();
+        try {
+            return entry.getFileDescriptor();
+        }
+        finally {
+            entry.close();
+        }
+    }
+}
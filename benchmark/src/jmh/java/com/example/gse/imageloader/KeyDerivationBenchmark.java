@@ -0,0 +1,63 @@
+package com.example.gse.imageloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deriving the disk cache key of a url, with and without the recent keys remembered, against the
+ * MessageDigest.getInstance and BigInteger derivation it replaced
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyDerivationBenchmark
+{
+    // More than DiskCacheKeys remembers, so the cold benchmark always derives
+    private static final int COLD_URLS = 4096;
+    private static final int WARM_URLS = 64;
+
+    private String[] urls;
+    private DiskCacheKeys keys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        urls = BenchmarkFiles.urls(COLD_URLS);
+        keys = new DiskCacheKeys();
+    }
+
+    @Benchmark
+    public String cold()
+    {
+        next = (next + 1) % COLD_URLS;
+        return keys.toInternalKey(urls[next]);
+    }
+
+    @Benchmark
+    public String warm()
+    {
+        next = (next + 1) % WARM_URLS;
+        return keys.toInternalKey(urls[next]);
+    }
+
+    @Benchmark
+    public String legacy() throws NoSuchAlgorithmException
+    {
+        next = (next + 1) % COLD_URLS;
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(urls[next].getBytes(java.nio.charset.Charset.forName("UTF-8")));
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+}
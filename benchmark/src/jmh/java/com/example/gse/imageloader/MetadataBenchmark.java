@@ -0,0 +1,113 @@
+package com.example.gse.imageloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the metadata of a disk cache entry, with the codec picked by parameter.
+ * Run with -prof gc for the allocations per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetadataBenchmark
+{
+    /**
+     * Metadata encoding under test
+     */
+    interface Codec
+    {
+        byte[] encode(Map<String, Serializable> metadata) throws IOException;
+
+        Map<String, Serializable> decode(byte[] data) throws IOException;
+    }
+
+    static final Codec BINARY = new Codec() {
+        @Override
+        public byte[] encode(Map<String, Serializable> metadata) throws IOException {
+            return MetadataCodec.encode(metadata);
+        }
+
+        @Override
+        public Map<String, Serializable> decode(byte[] data) throws IOException {
+            return MetadataCodec.decode(data);
+        }
+    };
+
+    // What SimpleDiskCache wrote before MetadataCodec
+    static final Codec JAVA_SERIALIZATION = new Codec() {
+        @Override
+        public byte[] encode(Map<String, Serializable> metadata) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(metadata);
+            oos.close();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, Serializable> decode(byte[] data) throws IOException {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+            try {
+                return (Map<String, Serializable>) ois.readObject();
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            finally {
+                ois.close();
+            }
+        }
+    };
+
+    @Param({"binary", "java-serialization"})
+    public String codecName;
+
+    private Codec codec;
+    private Map<String, Serializable> metadata;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        codec = codecName.equals("binary") ? BINARY : JAVA_SERIALIZATION;
+
+        // What ImageLoader stores for a typical response
+        metadata = new HashMap<>();
+        metadata.put(SimpleDiskCache.METADATA_ETAG, "\"5d8c72a5edda8d6a\"");
+        metadata.put(SimpleDiskCache.METADATA_LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+        metadata.put(SimpleDiskCache.METADATA_EXPIRES_AT, 1445412480000L);
+        metadata.put(SimpleDiskCache.METADATA_STALE_UNTIL, 1446017280000L);
+        encoded = codec.encode(metadata);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException
+    {
+        return codec.encode(metadata);
+    }
+
+    @Benchmark
+    public Map<String, Serializable> decode() throws IOException
+    {
+        return codec.decode(encoded);
+    }
+}
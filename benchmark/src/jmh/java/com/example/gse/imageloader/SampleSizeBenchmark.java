@@ -0,0 +1,35 @@
+package com.example.gse.imageloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * inSampleSize of a 12 MP photo for grid cell and full screen targets
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SampleSizeBenchmark
+{
+    @Param({"4032"})
+    public int width;
+
+    @Param({"3024"})
+    public int height;
+
+    @Param({"270", "1080"})
+    public int reqSize;
+
+    @Benchmark
+    public int calculate()
+    {
+        return SampleSize.calculate(width, height, reqSize, reqSize);
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.gse.imageloader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Decodes the value SimpleDiskCache read, BitmapFactory on a device. Benchmarks plug in a decoder
+ * that runs on a plain JVM, everything around the decode stays the code the app runs.
+ */
+interface BitmapDecoder
+{
+    BitmapDecoder BITMAP_FACTORY = new BitmapDecoder() {
+        @Override
+        public Bitmap decode(FileDescriptor fd, byte[] data, BitmapFactory.Options options) {
+            if (fd != null)
+                return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    };
+
+    /**
+     * Same contract as BitmapFactory: with inJustDecodeBounds only the out fields are set, an
+     * inBitmap that can not hold the image throws IllegalArgumentException.
+     *
+     * @param fd the value file, read from its start and left at the offset it was, null when data
+     *           is given
+     * @param data the whole value, null when fd is given
+     * @param options
+     * @return null for a bounds pass or an image that can not be decoded
+     * @throws IOException
+     */
+    Bitmap decode(FileDescriptor fd, byte[] data, BitmapFactory.Options options) throws IOException;
+}
@@ -0,0 +1,259 @@
+package com.example.gse.imageloader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of mutable bitmaps evicted from the memory cache, handed back to the decoder as
+ * BitmapFactory.Options.inBitmap so scrolling does not allocate a new bitmap per decode.
+ *
+ * Bitmaps are bucketed by config and allocation size. A bitmap still shown by an image view is
+ * never pooled, it is pooled once the last view showing it is rebound.
+ */
+public class BitmapPool
+{
+    // Do not hand out a bitmap more than this many times bigger than the decode needs
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> buckets = new HashMap<>();
+    private final Map<Bitmap, Integer> inUseBitmaps = new WeakHashMap<>();
+    private final Map<Bitmap, Boolean> evictedInUseBitmaps = new WeakHashMap<>();
+    private long maxBytes;
+    private long currentBytes;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     *
+     * @param maxBytes byte budget of the pooled bitmaps
+     */
+    public BitmapPool(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get a bitmap that can hold width x height pixels of the config, or null.
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+    {
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = buckets.get(config);
+        long requiredBytes = (long) width * height * getBytesPerPixel(config);
+
+        if (sizes != null && requiredBytes > 0)
+        {
+            Map.Entry<Integer, LinkedList<Bitmap>> bucket = sizes.ceilingEntry((int) Math.min(requiredBytes, Integer.MAX_VALUE));
+            if (bucket != null && bucket.getKey() <= requiredBytes * MAX_SIZE_MULTIPLE)
+            {
+                Bitmap bitmap = bucket.getValue().removeFirst();
+                if (bucket.getValue().isEmpty())
+                    sizes.remove(bucket.getKey());
+
+                currentBytes -= bucket.getKey();
+                hitCount++;
+                return bitmap;
+            }
+        }
+
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Add a bitmap nobody references any more.
+     *
+     * @param bitmap
+     * @return false if the bitmap can not be reused and is left to the GC
+     */
+    public synchronized boolean put(Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || getBytesPerPixel(bitmap.getConfig()) == 0)
+            return false;
+
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes)
+            return false;
+
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = buckets.get(bitmap.getConfig());
+        if (sizes == null)
+        {
+            sizes = new TreeMap<>();
+            buckets.put(bitmap.getConfig(), sizes);
+        }
+
+        LinkedList<Bitmap> bitmaps = sizes.get(size);
+        if (bitmaps == null)
+        {
+            bitmaps = new LinkedList<>();
+            sizes.put(size, bitmaps);
+        }
+
+        bitmaps.addLast(bitmap);
+        currentBytes += size;
+
+        trimToSize(maxBytes);
+        return true;
+    }
+
+    /**
+     * Mark a bitmap as shown, or about to be shown, by an image view.
+     *
+     * @param bitmap
+     */
+    public synchronized void acquire(Bitmap bitmap)
+    {
+        Integer count = inUseBitmaps.get(bitmap);
+        inUseBitmaps.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * An image view stopped showing the bitmap, pool it if it was evicted in the meantime.
+     *
+     * @param bitmap
+     */
+    public synchronized void release(Bitmap bitmap)
+    {
+        Integer count = inUseBitmaps.get(bitmap);
+        if (count == null)
+            return;
+
+        if (count > 1)
+        {
+            inUseBitmaps.put(bitmap, count - 1);
+            return;
+        }
+
+        inUseBitmaps.remove(bitmap);
+        if (evictedInUseBitmaps.remove(bitmap) != null)
+            put(bitmap);
+    }
+
+    /**
+     * The memory cache dropped the bitmap, pool it now or once no image view shows it.
+     *
+     * @param bitmap
+     */
+    public synchronized void recycle(Bitmap bitmap)
+    {
+        if (inUseBitmaps.containsKey(bitmap))
+            evictedInUseBitmaps.put(bitmap, Boolean.TRUE);
+        else
+            put(bitmap);
+    }
+
+    /**
+     * Set inMutable and a pooled inBitmap on options whose bounds and inSampleSize are known.
+     *
+     * @param options
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options)
+    {
+        options.inMutable = true;
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return;
+
+        // Sampled decodes round the size up
+        int inSampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + inSampleSize - 1) / inSampleSize;
+        int height = (options.outHeight + inSampleSize - 1) / inSampleSize;
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+
+        options.inBitmap = get(width, height, config);
+    }
+
+    /**
+     * Evict the largest bitmaps until the pool fits the size.
+     *
+     * @param size
+     */
+    public synchronized void trimToSize(long size)
+    {
+        while (currentBytes > size)
+        {
+            TreeMap<Integer, LinkedList<Bitmap>> largestSizes = null;
+            for (TreeMap<Integer, LinkedList<Bitmap>> sizes : buckets.values())
+            {
+                if (!sizes.isEmpty() && (largestSizes == null || sizes.lastKey() > largestSizes.lastKey()))
+                    largestSizes = sizes;
+            }
+
+            if (largestSizes == null)
+                break;
+
+            Map.Entry<Integer, LinkedList<Bitmap>> bucket = largestSizes.lastEntry();
+            bucket.getValue().removeFirst();
+            if (bucket.getValue().isEmpty())
+                largestSizes.remove(bucket.getKey());
+
+            currentBytes -= bucket.getKey();
+        }
+    }
+
+    /**
+     * Change the byte budget, evicting the largest bitmaps if the pool no longer fits.
+     *
+     * @param maxBytes
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void clear()
+    {
+        buckets.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     *
+     * @param config
+     * @return 0 for configs whose bitmaps can not be reused
+     */
+    private static int getBytesPerPixel(Bitmap.Config config)
+    {
+        if (config == null)
+            return 0;
+
+        switch (config)
+        {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case ARGB_8888:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+}
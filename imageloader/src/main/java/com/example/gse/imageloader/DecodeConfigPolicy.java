@@ -0,0 +1,61 @@
+package com.example.gse.imageloader;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * How the Bitmap.Config of a decode is picked, from the bounds pass of the image.
+ */
+public enum DecodeConfigPolicy
+{
+    /**
+     * Always ARGB_8888
+     */
+    ARGB_8888,
+
+    /**
+     * RGB_565 for JPEGs, which have no alpha, ARGB_8888 for everything else. Halves the memory of
+     * opaque photos at the cost of some banding in gradients.
+     */
+    PREFER_RGB_565,
+
+    /**
+     * HARDWARE on API 26 and up, kept in graphics memory only. For images that are only drawn,
+     * their pixels can not be read and they can not be reused through the bitmap pool. Same as
+     * PREFER_RGB_565 below API 26.
+     */
+    PREFER_HARDWARE;
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    /**
+     *
+     * @param bounds options after an inJustDecodeBounds pass
+     * @return
+     */
+    public Bitmap.Config resolve(BitmapFactory.Options bounds)
+    {
+        switch (this)
+        {
+            case PREFER_HARDWARE:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+                    return Bitmap.Config.HARDWARE;
+                // Fall through
+            case PREFER_RGB_565:
+                return MIME_TYPE_JPEG.equals(bounds.outMimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            default:
+                return Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    /**
+     *
+     * @param config
+     * @return false for HARDWARE bitmaps, which can not be decoded into a pooled bitmap
+     */
+    static boolean isPoolable(Bitmap.Config config)
+    {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.O || config != Bitmap.Config.HARDWARE;
+    }
+}
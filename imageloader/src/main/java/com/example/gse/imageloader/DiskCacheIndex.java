@@ -0,0 +1,296 @@
+package com.example.gse.imageloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the entries of a DiskLruCache, so existence and size checks do not open the
+ * entry files.
+ *
+ * Rebuilt from the DiskLruCache journal on open and kept in the same access order and byte budget
+ * afterwards, so it evicts the entries the DiskLruCache evicts. Should the two still disagree, a
+ * read missing an indexed entry drops it from the index.
+ *
+ * Lookups take no lock, they read a concurrent map kept next to the access ordered one. Changes,
+ * and touches that reorder the LRU, are serialized on the index.
+ */
+class DiskCacheIndex
+{
+    private static final String JOURNAL_FILE = "journal";
+    private static final int JOURNAL_HEADER_LINES = 5;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    // The same entries, written under this and read without it
+    private final ConcurrentHashMap<String, Entry> lookup = new ConcurrentHashMap<>();
+    private long maxSize;
+    private long size;
+
+    /**
+     * Size, non-empty values and last access of an entry
+     */
+    static class Entry
+    {
+        volatile long size;
+        volatile int presentValues; // Bit per value index whose file is not empty
+        volatile long lastAccessTime; // 0 when not accessed since the index was built
+
+        Entry(long size, int presentValues, long lastAccessTime)
+        {
+            this.size = size;
+            this.presentValues = presentValues;
+            this.lastAccessTime = lastAccessTime;
+        }
+    }
+
+    /**
+     *
+     * @param maxSize byte budget of the DiskLruCache
+     */
+    DiskCacheIndex(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Replay the journal of an opened DiskLruCache. An entry whose last edit was not committed or
+     * aborted is deleted by DiskLruCache on open, so it is left out.
+     *
+     * @param directory
+     * @throws IOException
+     */
+    synchronized void rebuild(File directory) throws IOException
+    {
+        clear();
+
+        File journal = new File(directory, JOURNAL_FILE);
+        if (!journal.exists())
+            return;
+
+        Set<String> editing = new HashSet<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+        try {
+            for (int i = 0; i < JOURNAL_HEADER_LINES; i++)
+            {
+                if (reader.readLine() == null)
+                    return;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(" ");
+                if (parts.length < 2)
+                    continue; // Torn last line
+
+                String key = parts[1];
+                if (parts[0].equals("CLEAN"))
+                {
+                    editing.remove(key);
+                    put(key, getLengths(parts), getPresentValues(parts), 0);
+                }
+                else if (parts[0].equals("DIRTY"))
+                {
+                    editing.add(key);
+                }
+                else if (parts[0].equals("REMOVE"))
+                {
+                    editing.remove(key);
+                    remove(key);
+                }
+                else if (parts[0].equals("READ"))
+                {
+                    entries.get(key); // Access order only
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        for (String key : editing)
+            remove(key);
+
+        trimToSize();
+    }
+
+    boolean contains(String key)
+    {
+        return lookup.containsKey(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the size of the entry in bytes or -1 if it is not cached
+     */
+    long getSize(String key)
+    {
+        Entry entry = lookup.get(key);
+        return entry != null ? entry.size : -1;
+    }
+
+    /**
+     *
+     * @param key
+     * @param valueIndex
+     * @return true if the entry is cached and that value of it is not empty
+     */
+    boolean hasValue(String key, int valueIndex)
+    {
+        Entry entry = lookup.get(key);
+        return entry != null && (entry.presentValues & (1 << valueIndex)) != 0;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the time of the last read or write, 0 if none since the cache was opened, -1 if it
+     * is not cached
+     */
+    long getLastAccessTime(String key)
+    {
+        Entry entry = lookup.get(key);
+        return entry != null ? entry.lastAccessTime : -1;
+    }
+
+    /**
+     * An entry was committed
+     *
+     * @param key
+     * @param valueLengths length of each value file
+     * @return the keys evicted to make room for it
+     */
+    synchronized List<String> put(String key, long[] valueLengths)
+    {
+        long entrySize = 0;
+        int presentValues = 0;
+        for (int i = 0; i < valueLengths.length; i++)
+        {
+            entrySize += valueLengths[i];
+            if (valueLengths[i] > 0)
+                presentValues |= 1 << i;
+        }
+
+        put(key, entrySize, presentValues, System.currentTimeMillis());
+        return trimToSize();
+    }
+
+    /**
+     * An entry was read, DiskLruCache moves it to the end of its LRU too
+     *
+     * @param key
+     */
+    synchronized void touch(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry != null)
+            entry.lastAccessTime = System.currentTimeMillis();
+    }
+
+    /**
+     *
+     * @param key
+     * @return false if it was not indexed
+     */
+    synchronized boolean remove(String key)
+    {
+        Entry entry = entries.remove(key);
+        if (entry == null)
+            return false;
+        lookup.remove(key);
+        size -= entry.size;
+        return true;
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+        lookup.clear();
+        size = 0;
+    }
+
+    synchronized long size()
+    {
+        return size;
+    }
+
+    /**
+     * Guarded by this
+     */
+    private void put(String key, long entrySize, int presentValues, long accessTime)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            entry = new Entry(entrySize, presentValues, accessTime);
+            entries.put(key, entry);
+            lookup.put(key, entry);
+        }
+        else
+        {
+            size -= entry.size;
+            entry.size = entrySize;
+            entry.presentValues = presentValues;
+            entry.lastAccessTime = accessTime;
+        }
+        size += entrySize;
+    }
+
+    /**
+     * Guarded by this, evict the least recently used entries like DiskLruCache does
+     *
+     * @return the evicted keys
+     */
+    private List<String> trimToSize()
+    {
+        List<String> evictedKeys = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext())
+        {
+            Map.Entry<String, Entry> entry = iterator.next();
+            size -= entry.getValue().size;
+            evictedKeys.add(entry.getKey());
+            lookup.remove(entry.getKey());
+            iterator.remove();
+        }
+        return evictedKeys;
+    }
+
+    private static int getPresentValues(String[] parts)
+    {
+        int presentValues = 0;
+        for (int i = 2; i < parts.length; i++)
+        {
+            if (!parts[i].equals("0"))
+                presentValues |= 1 << (i - 2);
+        }
+        return presentValues;
+    }
+
+    private static long getLengths(String[] parts)
+    {
+        long length = 0;
+        for (int i = 2; i < parts.length; i++)
+        {
+            try {
+                length += Long.parseLong(parts[i]);
+            }
+            catch (NumberFormatException e) {
+                // Corrupt line, DiskLruCache rebuilds its journal for it
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.gse.imageloader;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Derives the DiskLruCache keys of SimpleDiskCache, the MD5 of the key as 32 lowercase hex digits.
+ *
+ * The digest is reused per thread and the keys of recently used urls are remembered, a scroll
+ * derives the same few keys over and over.
+ */
+class DiskCacheKeys
+{
+    private static final int RECENT_KEYS = 256;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    // Guarded by itself
+    private final Map<String, String> recentKeys = new LinkedHashMap<String, String>(RECENT_KEYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > RECENT_KEYS;
+        }
+    };
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    String toInternalKey(String key)
+    {
+        String internalKey;
+        synchronized (recentKeys) {
+            internalKey = recentKeys.get(key);
+        }
+
+        if (internalKey == null)
+        {
+            internalKey = md5(key);
+            synchronized (recentKeys) {
+                recentKeys.put(key, internalKey);
+            }
+        }
+        return internalKey;
+    }
+
+    /**
+     * Key the entry was stored under before keys were fixed width, BigInteger.toString(16) dropped
+     * the leading zeros of the digest.
+     *
+     * @param internalKey
+     * @return the same instance when the digest has no leading zero
+     */
+    static String toLegacyKey(String internalKey)
+    {
+        int start = 0;
+        while (start < internalKey.length() - 1 && internalKey.charAt(start) == '0')
+            start++;
+        return start == 0 ? internalKey : internalKey.substring(start);
+    }
+
+    private static String md5(String key)
+    {
+        MessageDigest digest = DIGEST.get();
+        byte[] bytes = digest.digest(key.getBytes(UTF_8));
+
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
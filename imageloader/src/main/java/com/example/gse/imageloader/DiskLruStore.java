@@ -0,0 +1,210 @@
+package com.example.gse.imageloader;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * DiskStore of a DiskLruCache, a file per value and a journal line per operation. Lookups are
+ * answered by a DiskCacheIndex rebuilt from the journal.
+ */
+class DiskLruStore implements DiskStore
+{
+    private final int appVersion;
+    private final int valueCount;
+    private DiskLruCache diskLruCache;
+    private final DiskCacheIndex index;
+    private volatile EvictionListener evictionListener;
+
+    DiskLruStore(File directory, int appVersion, int valueCount, long maxSize) throws IOException
+    {
+        this.appVersion = appVersion;
+        this.valueCount = valueCount;
+        diskLruCache = DiskLruCache.open(directory, appVersion, valueCount, maxSize);
+        index = new DiskCacheIndex(maxSize);
+        index.rebuild(directory);
+    }
+
+    DiskLruCache getCache()
+    {
+        return diskLruCache;
+    }
+
+    @Override
+    public Snapshot get(String key) throws IOException
+    {
+        DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+        if (snapshot == null)
+        {
+            // Evicted or never written, keep the index from answering for it
+            if (index.remove(key))
+                notifyEvicted(key);
+            return null;
+        }
+        index.touch(key);
+        return new LruSnapshot(snapshot);
+    }
+
+    @Override
+    public Editor edit(String key) throws IOException
+    {
+        DiskLruCache.Editor editor = diskLruCache.edit(key);
+        return editor != null ? new LruEditor(key, editor) : null;
+    }
+
+    @Override
+    public boolean contains(String key)
+    {
+        return index.contains(key);
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException
+    {
+        if (!diskLruCache.remove(key))
+            return false;
+        index.remove(key);
+        return true;
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener evictionListener)
+    {
+        this.evictionListener = evictionListener;
+    }
+
+    @Override
+    public long getSize(String key)
+    {
+        return index.getSize(key);
+    }
+
+    @Override
+    public boolean hasValue(String key, int valueIndex)
+    {
+        return index.hasValue(key, valueIndex);
+    }
+
+    @Override
+    public long getLastAccessTime(String key)
+    {
+        return index.getLastAccessTime(key);
+    }
+
+    @Override
+    public void clear() throws IOException
+    {
+        File directory = diskLruCache.getDirectory();
+        long maxSize = diskLruCache.getMaxSize();
+        diskLruCache.delete();
+        index.clear();
+        diskLruCache = DiskLruCache.open(directory, appVersion, valueCount, maxSize);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        diskLruCache.close();
+    }
+
+    /**
+     * Index a committed entry, its files are complete until the next edit
+     *
+     * @param key
+     */
+    private void onCommitted(String key)
+    {
+        File directory = diskLruCache.getDirectory();
+        long[] valueLengths = new long[valueCount];
+        for (int i = 0; i < valueCount; i++)
+        {
+            File value = new File(directory, key + "." + i);
+            if (!value.exists())
+            {
+                // A failed write makes the commit remove the entry instead
+                index.remove(key);
+                return;
+            }
+            valueLengths[i] = value.length();
+        }
+
+        // The index evicts what DiskLruCache evicts for the same commit
+        for (String evictedKey : index.put(key, valueLengths))
+            notifyEvicted(evictedKey);
+    }
+
+    private void notifyEvicted(String key)
+    {
+        EvictionListener evictionListener = this.evictionListener;
+        if (evictionListener != null)
+            evictionListener.onEvicted(key);
+    }
+
+    /**
+     * Snapshot streams are plain file streams, valid until the snapshot is closed
+     */
+    static class LruSnapshot implements Snapshot
+    {
+        private final DiskLruCache.Snapshot snapshot;
+
+        LruSnapshot(DiskLruCache.Snapshot snapshot)
+        {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public InputStream getInputStream(int valueIndex) {
+            return snapshot.getInputStream(valueIndex);
+        }
+
+        @Override
+        public long getLength(int valueIndex) {
+            return snapshot.getLength(valueIndex);
+        }
+
+        @Override
+        public void close() {
+            snapshot.close();
+        }
+    }
+
+    private class LruEditor implements Editor
+    {
+        private final String key;
+        private final DiskLruCache.Editor editor;
+
+        LruEditor(String key, DiskLruCache.Editor editor)
+        {
+            this.key = key;
+            this.editor = editor;
+        }
+
+        @Override
+        public OutputStream newOutputStream(int valueIndex) throws IOException {
+            return editor.newOutputStream(valueIndex);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            try {
+                editor.commit();
+            }
+            catch (IllegalStateException e) {
+                // Evicted while edited, the editor aborted itself
+                if (index.remove(key))
+                    notifyEvicted(key);
+                throw e;
+            }
+            onCommitted(key);
+        }
+
+        @Override
+        public void abort() throws IOException {
+            editor.abort();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.gse.imageloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Storage engine behind SimpleDiskCache, entries of a fixed number of values under a key.
+ *
+ * Same contract as DiskLruCache: committing an edit of a new entry that did not write every value
+ * throws IllegalStateException and aborts it, an edit of an existing entry keeps the values it did
+ * not write. The least recently used entries are evicted past the byte budget. Lookups that do not
+ * read the entry are answered from memory.
+ */
+interface DiskStore extends Closeable
+{
+    /**
+     *
+     * @param key
+     * @return an open view of the entry, null if it is not cached
+     * @throws IOException
+     */
+    Snapshot get(String key) throws IOException;
+
+    /**
+     *
+     * @param key
+     * @return null if the entry is already being edited
+     * @throws IOException
+     */
+    Editor edit(String key) throws IOException;
+
+    boolean contains(String key);
+
+    /**
+     * Drop the entry, it stays dropped when the store is opened again
+     *
+     * @param key
+     * @return false if it is not cached or is being edited
+     * @throws IOException
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * Told of entries dropped to stay within the byte budget, after the store let go of its locks
+     *
+     * @param evictionListener
+     */
+    void setEvictionListener(EvictionListener evictionListener);
+
+    /**
+     *
+     * @param key
+     * @return the size of the values of the entry in bytes, -1 if it is not cached
+     */
+    long getSize(String key);
+
+    /**
+     *
+     * @param key
+     * @param valueIndex
+     * @return true if the entry is cached and that value of it is not empty
+     */
+    boolean hasValue(String key, int valueIndex);
+
+    /**
+     *
+     * @param key
+     * @return the time of the last read or write, 0 if none since the store was opened, -1 if it
+     * is not cached
+     */
+    long getLastAccessTime(String key);
+
+    /**
+     * Delete every entry and start over empty, with no reads or edits outstanding
+     *
+     * @throws IOException
+     */
+    void clear() throws IOException;
+
+    interface EvictionListener
+    {
+        void onEvicted(String key);
+    }
+
+    /**
+     * Values of an entry as they were when it was read, readable until closed
+     */
+    interface Snapshot extends Closeable
+    {
+        /**
+         *
+         * @param valueIndex
+         * @return a FileInputStream if the value is a file of its own
+         */
+        InputStream getInputStream(int valueIndex);
+
+        long getLength(int valueIndex);
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Pending write of an entry, exactly one of commit or abort ends it
+     */
+    interface Editor
+    {
+        OutputStream newOutputStream(int valueIndex) throws IOException;
+
+        void commit() throws IOException;
+
+        void abort() throws IOException;
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.gse.imageloader;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Write-behind queue of downloaded images, written to the disk cache in arrival order by one
+ * thread so a download hands its bytes to the decoder without waiting for the disk.
+ *
+ * Bounded by bytes, an offer that does not fit is dropped rather than blocking the download. An
+ * image larger than the whole budget could never fit, it is written on the offering thread. A
+ * newer write of a key replaces the one still queued, and a revalidation renews its metadata.
+ * Queued writes are visible through get until they are committed, so a load of the url in the
+ * meantime does not download it again.
+ *
+ * A write that fails is logged and the next one goes on. An interrupted writer thread hands over
+ * to a new one.
+ */
+class DiskWriteQueue
+{
+    private final long maxBytes;
+    private final ThreadFactory threadFactory;
+    // Guarded by this, in arrival order, a replaced write keeps the place of the one it replaced
+    private final LinkedHashMap<String, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    private long pendingBytes;
+    private Thread writerThread;
+    private PendingWrite writing; // Taken by the writer thread, not committed yet
+
+    /**
+     * Downloaded image waiting for the disk
+     */
+    static class PendingWrite
+    {
+        final SimpleDiskCache diskCache;
+        final String key;
+        final byte[] data;
+        final Map<String, Serializable> metadata;
+
+        PendingWrite(SimpleDiskCache diskCache, String key, byte[] data, Map<String, Serializable> metadata)
+        {
+            this.diskCache = diskCache;
+            this.key = key;
+            this.data = data;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     *
+     * @param maxBytes byte budget of the queued images
+     * @param threadFactory makes the writer thread, started with the first write
+     */
+    DiskWriteQueue(long maxBytes, ThreadFactory threadFactory)
+    {
+        this.maxBytes = maxBytes;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Queue a write, only blocks for an image larger than the budget, written before it returns
+     *
+     * @param diskCache
+     * @param key
+     * @param data
+     * @param metadata
+     * @return false if the queue is full and the write was dropped
+     */
+    boolean offer(SimpleDiskCache diskCache, String key, byte[] data, Map<String, Serializable> metadata)
+    {
+        PendingWrite pendingWrite = new PendingWrite(diskCache, key, data, metadata);
+        if (data.length > maxBytes)
+        {
+            writeNow(pendingWrite);
+            return true;
+        }
+
+        synchronized (this) {
+            PendingWrite previous = pendingWrites.get(key);
+            long replacedBytes = previous != null ? previous.data.length : 0;
+            if (pendingBytes - replacedBytes + data.length > maxBytes)
+                return false;
+
+            pendingWrites.put(key, pendingWrite);
+            pendingBytes += data.length - replacedBytes;
+
+            if (writerThread == null)
+                startWriterThread();
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Write on the calling thread, the queued write of the key is dropped and one being written
+     * finishes first so it can not overwrite this one
+     *
+     * @param pendingWrite
+     */
+    private void writeNow(PendingWrite pendingWrite)
+    {
+        synchronized (this) {
+            PendingWrite previous = pendingWrites.remove(pendingWrite.key);
+            if (previous != null)
+                pendingBytes -= previous.data.length;
+
+            while (writing != null && writing.key.equals(pendingWrite.key))
+            {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    // Written anyway, the download is done
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        write(pendingWrite);
+    }
+
+    /**
+     * Guarded by this
+     */
+    private void startWriterThread()
+    {
+        writerThread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+        writerThread.start();
+    }
+
+    /**
+     *
+     * @param key
+     * @return the write of the key not committed yet, or null
+     */
+    synchronized PendingWrite get(String key)
+    {
+        return pendingWrites.get(key);
+    }
+
+    /**
+     * The image was revalidated, its write goes to disk with the renewed metadata. A write being
+     * written is written again after it.
+     *
+     * @param key
+     * @param metadata
+     * @return false if no write of the key is pending, it is committed
+     */
+    synchronized boolean updateMetadata(String key, Map<String, Serializable> metadata)
+    {
+        PendingWrite pendingWrite = pendingWrites.get(key);
+        if (pendingWrite == null)
+            return false;
+
+        // Same bytes in the same place, the budget is unchanged
+        pendingWrites.put(key, new PendingWrite(pendingWrite.diskCache, key, pendingWrite.data, metadata));
+        return true;
+    }
+
+    synchronized long getPendingBytes()
+    {
+        return pendingBytes;
+    }
+
+    /**
+     * Writer thread, the write stays visible through get until it is committed. Interrupted, it
+     * ends and a new thread takes over the writes still queued, the interrupt would otherwise fail
+     * every write waiting for its lock.
+     */
+    private void drain()
+    {
+        boolean interrupted = false;
+        try {
+            while (true)
+            {
+                PendingWrite write;
+                synchronized (this) {
+                    while (pendingWrites.isEmpty())
+                        wait();
+                    write = pendingWrites.values().iterator().next();
+                    writing = write;
+                }
+
+                write(write);
+
+                synchronized (this) {
+                    writing = null;
+                    // Replaced while it was written, the newer write is next
+                    if (pendingWrites.get(write.key) == write)
+                    {
+                        pendingWrites.remove(write.key);
+                        pendingBytes -= write.data.length;
+                    }
+                    notifyAll();
+                }
+
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+        finally {
+            // An Error ends the thread and is thrown on, the next offer starts another one
+            synchronized (this) {
+                writing = null;
+                if (writerThread == Thread.currentThread())
+                {
+                    writerThread = null;
+                    if (interrupted && !pendingWrites.isEmpty())
+                        startWriterThread();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Failures are logged, the caller goes on with the next write
+     *
+     * @param write
+     */
+    private static void write(PendingWrite write)
+    {
+        try {
+            SimpleDiskCache.CacheOutputStream cacheStream = write.diskCache.openStream(write.key, write.metadata);
+            boolean complete = false;
+            try {
+                cacheStream.write(write.data);
+                complete = true;
+            }
+            finally {
+                if (!complete)
+                    cacheStream.abort();
+                cacheStream.close();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
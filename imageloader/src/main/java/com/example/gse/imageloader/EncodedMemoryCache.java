@@ -0,0 +1,260 @@
+package com.example.gse.imageloader;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory tier of encoded images between the bitmap memory cache and the disk cache, several
+ * times denser than decoded bitmaps so it keeps many more images resident. A hit costs a copy
+ * and a decode, no file open or metadata read.
+ *
+ * Bytes live in direct buffers of a fixed page size, pooled across entries so evicting and
+ * storing images of any size does not allocate once the pool is warm. An entry takes as many
+ * pages as it needs, at most a page less one byte is wasted per entry. Allocated pages, used and
+ * free, stay within the byte budget. Entries are evicted least recently used first.
+ */
+class EncodedMemoryCache
+{
+    static final int PAGE_SIZE = 4 * 1024;
+    // Larger images would evict too much of the tier at once
+    private static final int MAX_ENTRY_SHARE = 8;
+
+    // Keys of the entries, written under this and read without it
+    private final Set<String> keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private final ArrayDeque<ByteBuffer> freePages = new ArrayDeque<>();
+    private long maxPages;
+    private long allocatedPages;
+    private long hitCount;
+    private long missCount;
+
+    private static class Entry
+    {
+        final ByteBuffer[] pages;
+        final int length;
+        Map<String, Serializable> metadata;
+
+        Entry(ByteBuffer[] pages, int length, Map<String, Serializable> metadata)
+        {
+            this.pages = pages;
+            this.length = length;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Bytes and metadata of a hit, the bytes are a copy owned by the caller
+     */
+    static class EncodedImage
+    {
+        final byte[] data;
+        final Map<String, Serializable> metadata;
+
+        EncodedImage(byte[] data, Map<String, Serializable> metadata)
+        {
+            this.data = data;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     *
+     * @param maxBytes byte budget of the pages
+     */
+    EncodedMemoryCache(long maxBytes)
+    {
+        this.maxPages = maxBytes / PAGE_SIZE;
+    }
+
+    /**
+     * Store a copy of the bytes, replacing any entry of the key
+     *
+     * @param key
+     * @param data
+     * @param metadata
+     * @return false if the image is too large for the tier
+     */
+    synchronized boolean put(String key, byte[] data, Map<String, Serializable> metadata)
+    {
+        remove(key);
+
+        int pageCount = (data.length + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (data.length == 0 || pageCount > maxPages / MAX_ENTRY_SHARE)
+            return false;
+
+        // Evict until the pool has the pages free or room to allocate them
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (freePages.size() < pageCount && allocatedPages - freePages.size() + pageCount > maxPages)
+        {
+            if (!eldest.hasNext())
+                return false;
+            evict(eldest);
+        }
+
+        ByteBuffer[] pages = new ByteBuffer[pageCount];
+        int offset = 0;
+        for (int i = 0; i < pageCount; i++)
+        {
+            ByteBuffer page = freePages.poll();
+            if (page == null)
+            {
+                page = ByteBuffer.allocateDirect(PAGE_SIZE);
+                allocatedPages++;
+            }
+
+            int count = Math.min(PAGE_SIZE, data.length - offset);
+            page.clear();
+            page.put(data, offset, count);
+            pages[i] = page;
+            offset += count;
+        }
+
+        entries.put(key, new Entry(pages, data.length, metadata));
+        keys.add(key);
+        return true;
+    }
+
+    /**
+     *
+     * @param key
+     * @return a copy of the bytes and the metadata, or null
+     */
+    synchronized EncodedImage get(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            missCount++;
+            return null;
+        }
+
+        byte[] data = new byte[entry.length];
+        int offset = 0;
+        for (ByteBuffer page : entry.pages)
+        {
+            int count = Math.min(PAGE_SIZE, entry.length - offset);
+            page.clear();
+            page.get(data, offset, count);
+            offset += count;
+        }
+
+        hitCount++;
+        return new EncodedImage(data, entry.metadata);
+    }
+
+    /**
+     * Takes no lock, for the UI thread and for deciding where a load goes next. The entry may be
+     * evicted before it is read.
+     *
+     * @param key
+     * @return
+     */
+    boolean contains(String key)
+    {
+        return keys.contains(key);
+    }
+
+    /**
+     * The image was revalidated, keep its bytes with the renewed freshness
+     *
+     * @param key
+     * @param metadata
+     */
+    synchronized void updateMetadata(String key, Map<String, Serializable> metadata)
+    {
+        Entry entry = entries.get(key);
+        if (entry != null)
+            entry.metadata = metadata;
+    }
+
+    synchronized void remove(String key)
+    {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+        {
+            keys.remove(key);
+            releasePages(entry);
+        }
+    }
+
+    /**
+     * Change the byte budget, evicting entries and dropping free pages that no longer fit
+     *
+     * @param maxBytes
+     */
+    synchronized void setMaxBytes(long maxBytes)
+    {
+        maxPages = maxBytes / PAGE_SIZE;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (allocatedPages - freePages.size() > maxPages && eldest.hasNext())
+            evict(eldest);
+
+        while (allocatedPages > maxPages && !freePages.isEmpty())
+        {
+            freePages.poll();
+            allocatedPages--;
+        }
+    }
+
+    /**
+     *
+     * @return the size of the largest image the tier stores
+     */
+    synchronized long getMaxEntryBytes()
+    {
+        return maxPages / MAX_ENTRY_SHARE * PAGE_SIZE;
+    }
+
+    synchronized long getAllocatedBytes()
+    {
+        return allocatedPages * PAGE_SIZE;
+    }
+
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @param eldest positioned before the entry to evict
+     */
+    private void evict(Iterator<Map.Entry<String, Entry>> eldest)
+    {
+        Map.Entry<String, Entry> entry = eldest.next();
+        eldest.remove();
+        keys.remove(entry.getKey());
+        releasePages(entry.getValue());
+    }
+
+    /**
+     * Guarded by this, back to the pool, dropped if the budget shrank below what is allocated
+     *
+     * @param entry
+     */
+    private void releasePages(Entry entry)
+    {
+        for (ByteBuffer page : entry.pages)
+        {
+            if (allocatedPages > maxPages)
+                allocatedPages--;
+            else
+                freePages.push(page);
+        }
+    }
+}
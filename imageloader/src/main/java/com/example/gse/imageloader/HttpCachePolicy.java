@@ -0,0 +1,220 @@
+package com.example.gse.imageloader;
+
+import java.io.Serializable;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Freshness of disk cache entries, stored in their SimpleDiskCache metadata.
+ *
+ * An entry is served as is until it expires, served and revalidated in the background while it is
+ * stale, and revalidated with a conditional GET before it is served after that. The lifetimes come
+ * from the Cache-Control and Expires response headers, or the defaults of the policy. Responses
+ * with no-cache or no-store are revalidated before every use, no-store ones are not stored at all.
+ */
+public class HttpCachePolicy
+{
+    public static final int FRESH = 0;
+    public static final int STALE = 1;
+    public static final int EXPIRED = 2;
+
+    private static final long SECOND = 1000L;
+    // Lifetimes are clamped so adding them to the current time can not overflow
+    private static final long MAX_LIFETIME = Long.MAX_VALUE / 4;
+
+    private final long defaultTtl;
+    private final long defaultStaleWhileRevalidate;
+
+    /**
+     *
+     * @param defaultTtl milliseconds an entry is fresh when the response does not say
+     * @param defaultStaleWhileRevalidate milliseconds an entry may be served while it is revalidated,
+     *                                    after it expired, when the response does not say
+     */
+    public HttpCachePolicy(long defaultTtl, long defaultStaleWhileRevalidate)
+    {
+        this.defaultTtl = defaultTtl;
+        this.defaultStaleWhileRevalidate = defaultStaleWhileRevalidate;
+    }
+
+    /**
+     *
+     * @param metadata metadata of the disk cache entry, may be null
+     * @param now
+     * @return FRESH, STALE or EXPIRED
+     */
+    public int getFreshness(Map<String, Serializable> metadata, long now)
+    {
+        Long expiresAt = getTime(metadata, SimpleDiskCache.METADATA_EXPIRES_AT);
+        if (expiresAt == null)
+            return EXPIRED; // Written before freshness was tracked, or by someone else
+
+        if (now < expiresAt)
+            return FRESH;
+
+        Long staleUntil = getTime(metadata, SimpleDiskCache.METADATA_STALE_UNTIL);
+        if (staleUntil != null && now < staleUntil)
+            return STALE;
+
+        return EXPIRED;
+    }
+
+    /**
+     * Whether the response may be written to a cache at all
+     *
+     * @param connection
+     * @return false for Cache-Control: no-store
+     */
+    public boolean isStorable(URLConnection connection)
+    {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl == null)
+            return true;
+
+        for (String directive : cacheControl.toLowerCase(Locale.US).split(","))
+        {
+            if (directive.trim().equals("no-store"))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add If-None-Match and If-Modified-Since from the cached entry
+     *
+     * @param connection not yet connected
+     * @param metadata
+     */
+    public void addValidators(URLConnection connection, Map<String, Serializable> metadata)
+    {
+        if (metadata == null)
+            return;
+
+        Serializable etag = metadata.get(SimpleDiskCache.METADATA_ETAG);
+        if (etag != null)
+            connection.setRequestProperty("If-None-Match", etag.toString());
+
+        Serializable lastModified = metadata.get(SimpleDiskCache.METADATA_LAST_MODIFIED);
+        if (lastModified != null)
+            connection.setRequestProperty("If-Modified-Since", lastModified.toString());
+    }
+
+    /**
+     * Metadata to store with a full response
+     *
+     * @param connection
+     * @param now
+     * @return
+     */
+    public Map<String, Serializable> getMetadata(URLConnection connection, long now)
+    {
+        return getRevalidatedMetadata(new HashMap<String, Serializable>(), connection, now);
+    }
+
+    /**
+     * Metadata of a cached entry after a 304, the response may update the validators
+     *
+     * @param metadata the entry's current metadata
+     * @param connection
+     * @param now
+     * @return
+     */
+    public Map<String, Serializable> getRevalidatedMetadata(Map<String, Serializable> metadata, URLConnection connection, long now)
+    {
+        Map<String, Serializable> revalidated = new HashMap<>(metadata);
+
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null)
+            revalidated.put(SimpleDiskCache.METADATA_ETAG, etag);
+
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (lastModified != null)
+            revalidated.put(SimpleDiskCache.METADATA_LAST_MODIFIED, lastModified);
+
+        long ttl = defaultTtl;
+        long staleWhileRevalidate = defaultStaleWhileRevalidate;
+
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        long maxAge = -1;
+        boolean mustRevalidate = false;
+        if (cacheControl != null)
+        {
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(","))
+            {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store"))
+                    mustRevalidate = true;
+                else if (directive.startsWith("max-age="))
+                    maxAge = parseSeconds(directive.substring("max-age=".length()), maxAge);
+                else if (directive.startsWith("stale-while-revalidate="))
+                    staleWhileRevalidate = toMillis(parseSeconds(directive.substring("stale-while-revalidate=".length()), staleWhileRevalidate / SECOND));
+            }
+        }
+
+        if (mustRevalidate)
+        {
+            // Never served without asking the server first, not even stale
+            ttl = 0;
+            staleWhileRevalidate = 0;
+        }
+        else if (maxAge >= 0)
+        {
+            ttl = toMillis(maxAge);
+        }
+        else if (connection.getExpiration() > 0)
+        {
+            // Relative to the server clock when it sent one
+            long date = connection.getDate() > 0 ? connection.getDate() : now;
+            ttl = Math.max(0, connection.getExpiration() - date);
+        }
+
+        ttl = Math.min(Math.max(0, ttl), MAX_LIFETIME);
+        staleWhileRevalidate = Math.min(Math.max(0, staleWhileRevalidate), MAX_LIFETIME);
+        revalidated.put(SimpleDiskCache.METADATA_EXPIRES_AT, now + ttl);
+        revalidated.put(SimpleDiskCache.METADATA_STALE_UNTIL, now + ttl + staleWhileRevalidate);
+        return revalidated;
+    }
+
+    /**
+     *
+     * @param seconds
+     * @return the milliseconds, at most MAX_LIFETIME
+     */
+    private static long toMillis(long seconds)
+    {
+        return seconds >= MAX_LIFETIME / SECOND ? MAX_LIFETIME : seconds * SECOND;
+    }
+
+    /**
+     * Entries written by other code or older versions may hold anything under the key
+     *
+     * @param metadata may be null
+     * @param key
+     * @return the time, or null if there is no number under the key
+     */
+    private static Long getTime(Map<String, Serializable> metadata, String key)
+    {
+        Serializable value = metadata != null ? metadata.get(key) : null;
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    /**
+     *
+     * @param value
+     * @param fallback
+     * @return
+     */
+    private static long parseSeconds(String value, long fallback)
+    {
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value));
+        }
+        catch (NumberFormatException e) {
+            // Too many digits for a long, RFC 7234 says to take it as the largest value
+            return value.matches("[0-9]+") ? Long.MAX_VALUE : fallback;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.gse.imageloader;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+
+/**
+ * Network side of a load: the request, conditional when the image is cached, and the bookkeeping
+ * of the response across the tiers.
+ *
+ * A full response is read into memory, stored in the encoded memory cache and queued for the disk
+ * cache with its freshness metadata, unless it says no-store. A 304 renews the metadata of every
+ * copy the validators may have come from: the write still queued for the disk, the encoded memory
+ * cache and the disk cache entry. The copy to decode is then whichever of them is left.
+ */
+class ImageFetcher
+{
+    static final int FETCH_FAILED = 0;
+    static final int FETCH_NOT_MODIFIED = 1;
+    static final int FETCH_DOWNLOADED = 2;
+
+    private static final int DOWNLOAD_BUFFER_SIZE = 8 * 1024;
+
+    private final EncodedMemoryCache encodedMemoryCache;
+    private final DiskWriteQueue diskWriteQueue;
+    private final ImageLoaderMetrics metrics;
+
+    /**
+     * The load a fetch is for, called on the fetching thread
+     */
+    interface Listener
+    {
+        /**
+         *
+         * @return true to stop the fetch, it fails
+         */
+        boolean isCancelled();
+
+        /**
+         * The connection was opened, disconnecting it aborts the fetch
+         *
+         * @param connection
+         */
+        void onConnection(URLConnection connection);
+
+        /**
+         * A full response starts
+         *
+         * @param contentLength -1 if unknown
+         */
+        void onResponse(int contentLength);
+
+        /**
+         * Bytes of the full response as they are read
+         *
+         * @param buffer
+         * @param count
+         */
+        void onBytes(byte[] buffer, int count);
+    }
+
+    /**
+     * Outcome of a fetch
+     */
+    static class Result
+    {
+        final int status;
+        final byte[] data;
+
+        Result(int status, byte[] data)
+        {
+            this.status = status;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Cached copy of an image to decode
+     */
+    static class Copy
+    {
+        // Null to read the original from the disk cache
+        final byte[] data;
+        // Stored variants may serve the requests
+        final boolean diskCached;
+
+        Copy(byte[] data, boolean diskCached)
+        {
+            this.data = data;
+            this.diskCached = diskCached;
+        }
+    }
+
+    ImageFetcher(EncodedMemoryCache encodedMemoryCache, DiskWriteQueue diskWriteQueue, ImageLoaderMetrics metrics)
+    {
+        this.encodedMemoryCache = encodedMemoryCache;
+        this.diskWriteQueue = diskWriteQueue;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Request the image. If the write queue is full the image is not cached on disk, an image
+     * larger than the whole queue is written here.
+     *
+     * @param url
+     * @param diskCache may be null
+     * @param cachedMetadata metadata of the cached copy to revalidate, null if not cached
+     * @param cachePolicy
+     * @param listener
+     * @return FETCH_FAILED, FETCH_NOT_MODIFIED, or FETCH_DOWNLOADED with the bytes
+     */
+    Result fetch(String url, SimpleDiskCache diskCache, Map<String, Serializable> cachedMetadata,
+                 HttpCachePolicy cachePolicy, Listener listener)
+    {
+        long start = System.nanoTime();
+        Result result = fetchResponse(url, diskCache, cachedMetadata, cachePolicy, listener);
+        metrics.download.recordSince(start);
+
+        if (result.status == FETCH_NOT_MODIFIED)
+            metrics.networkNotModified.incrementAndGet();
+        else if (result.status == FETCH_FAILED)
+            metrics.networkFailures.incrementAndGet();
+        else
+            metrics.networkDownloads.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * What to decode after a fetch. Not modified, or offline or failing server and the expired copy
+     * is better than nothing, it is whichever cached copy is left.
+     *
+     * @param url
+     * @param diskCache may be null
+     * @param result
+     * @return null if there is nothing to decode
+     */
+    Copy getCopy(String url, SimpleDiskCache diskCache, Result result)
+    {
+        if (result.status == FETCH_DOWNLOADED)
+            return new Copy(result.data, false);
+        return findCopy(url, diskCache);
+    }
+
+    /**
+     * The copy of the image still queued for the disk, else the one in the encoded memory cache,
+     * else the disk cache entry
+     *
+     * @param url
+     * @param diskCache may be null
+     * @return null if no copy is left
+     */
+    private Copy findCopy(String url, SimpleDiskCache diskCache)
+    {
+        DiskWriteQueue.PendingWrite pendingWrite = diskWriteQueue.get(url);
+        if (pendingWrite != null)
+            return new Copy(pendingWrite.data, false);
+
+        boolean diskCached = false;
+        try {
+            diskCached = diskCache != null && diskCache.contains(url);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        EncodedMemoryCache.EncodedImage encodedImage = encodedMemoryCache.contains(url) ? encodedMemoryCache.get(url) : null;
+        if (encodedImage != null)
+            return new Copy(encodedImage.data, diskCached);
+
+        return diskCached ? new Copy(null, true) : null;
+    }
+
+    private Result fetchResponse(String url, SimpleDiskCache diskCache, Map<String, Serializable> cachedMetadata,
+                                 HttpCachePolicy cachePolicy, Listener listener)
+    {
+        InputStream inputStream = null;
+        try {
+            URLConnection connection = new URL(url).openConnection();
+            listener.onConnection(connection);
+            if (listener.isCancelled())
+                return new Result(FETCH_FAILED, null);
+
+            if (cachedMetadata != null && diskCache != null)
+                cachePolicy.addValidators(connection, cachedMetadata);
+
+            long now = System.currentTimeMillis();
+            if (connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                // Validators only go out with a cached copy, renew its freshness without a body
+                revalidate(url, diskCache, cachePolicy.getRevalidatedMetadata(cachedMetadata, connection, now));
+                return new Result(FETCH_NOT_MODIFIED, null);
+            }
+
+            inputStream = connection.getInputStream();
+            Map<String, Serializable> metadata = cachePolicy.getMetadata(connection, now);
+            int contentLength = connection.getContentLength();
+            listener.onResponse(contentLength);
+
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(contentLength > 0 ? contentLength : DOWNLOAD_BUFFER_SIZE);
+            if (!copyResponse(inputStream, byteStream, listener))
+                return new Result(FETCH_FAILED, null);
+
+            byte[] imageBytes = byteStream.toByteArray();
+            if (!cachePolicy.isStorable(connection))
+                return new Result(FETCH_DOWNLOADED, imageBytes); // no-store, decoded for the waiting views only
+
+            encodedMemoryCache.put(url, imageBytes, metadata);
+            if (diskCache != null && !diskWriteQueue.offer(diskCache, url, imageBytes, metadata))
+                metrics.diskWritesDropped.incrementAndGet();
+            return new Result(FETCH_DOWNLOADED, imageBytes);
+        }
+        catch (Exception e)
+        {
+            if (!listener.isCancelled())
+                e.printStackTrace();
+        }
+        finally
+        {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        return new Result(FETCH_FAILED, null);
+    }
+
+    /**
+     * A write still queued for the disk is written with the renewed metadata, the disk cache entry
+     * is only updated when there is none
+     *
+     * @param url
+     * @param diskCache
+     * @param revalidatedMetadata
+     * @throws IOException
+     */
+    private void revalidate(String url, SimpleDiskCache diskCache, Map<String, Serializable> revalidatedMetadata) throws IOException
+    {
+        encodedMemoryCache.updateMetadata(url, revalidatedMetadata);
+        if (!diskWriteQueue.updateMetadata(url, revalidatedMetadata))
+            diskCache.putMetadata(url, revalidatedMetadata);
+    }
+
+    /**
+     * Copy the raw response bytes to the output as they are read
+     *
+     * @param inputStream
+     * @param outputStream
+     * @param listener
+     * @return true if the whole response was copied
+     * @throws IOException
+     */
+    private boolean copyResponse(InputStream inputStream, ByteArrayOutputStream outputStream, Listener listener) throws IOException
+    {
+        byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            if (listener.isCancelled())
+                return false;
+            outputStream.write(buffer, 0, count);
+            metrics.bytesDownloaded.addAndGet(count);
+            listener.onBytes(buffer, count);
+        }
+
+        return !listener.isCancelled();
+    }
+}
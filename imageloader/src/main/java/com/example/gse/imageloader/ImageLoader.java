@@ -1,26 +1,32 @@
 package com.example.gse.imageloader;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.DisplayMetrics;
-import android.util.Log;
 import android.util.LruCache;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.util.Collections;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ThreadFactory;
 
 /**
@@ -30,16 +36,51 @@ public class ImageLoader
 {
     private static ImageLoader _instance;
     private LruCache<String, Bitmap> memoryCache;
-    private ExecutorService executorService;
-    private Map imageViewMap;
+    private BitmapPool bitmapPool;
+    private EncodedMemoryCache encodedMemoryCache;
+    // Full sizes, before any memory trim
+    private int memoryCacheSize;
+    private long bitmapPoolSize;
+    private long encodedMemoryCacheSize;
+    private final MemoryCacheSizer memoryCacheSizer = new MemoryCacheSizer();
+    private StageExecutor diskExecutor;
+    private StageExecutor networkExecutor;
+    private StageExecutor decodeExecutor;
+    private ImageLoaderMetrics metrics;
+    private DiskWriteQueue diskWriteQueue;
+    private ImageFetcher imageFetcher;
+    // Variants asked for recently, so a scroll does not queue the same generation over and over
+    private final LruCache<String, Boolean> variantRequests = new LruCache<>(VARIANT_REQUESTS);
+    private final Map<String, LoaderImageTask> inFlightTasks = new HashMap<>();
+    private final AtomicLong requestSequence = new AtomicLong();
     private Handler handler;
     private static int screenWidth;
     private static int screenHeight;
 
-    private SimpleDiskCache diskLruCache;
-    private final Object diskCacheLock = new Object();
-    private boolean diskCacheStarting = true;
+    private volatile SimpleDiskCache diskLruCache;
+    private final CountDownLatch diskCacheStarting = new CountDownLatch(1);
     private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+    private static final Bitmap.Config DEFAULT_BITMAP_CONFIG = Bitmap.Config.ARGB_8888;
+    private static final long DISK_WRITE_QUEUE_SIZE = 1024 * 1024 * 4; // 4MB
+
+    // Network threads mostly wait on sockets, disk reads are short, decoding is CPU bound
+    private static final int NETWORK_THREADS = 6;
+    private static final int DISK_THREADS = 2;
+    private static final int DECODE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int STAGE_QUEUE_CAPACITY = 64;
+
+    private static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L; // 1 day
+    private static final long DEFAULT_STALE_WHILE_REVALIDATE = 7 * 24 * 60 * 60 * 1000L; // 1 week
+
+    // Progressive loads show a preview decoded from the first bytes, sampled this much further down
+    private static final int PREVIEW_SCALE = 4;
+    private static final int PREVIEW_MIN_BYTES = 16 * 1024;
+    private static final int PREVIEW_UNKNOWN_LENGTH_BYTES = 64 * 1024;
+
+    private static final int VARIANT_REQUESTS = 512;
+
+    private volatile DecodeConfigPolicy configPolicy = DecodeConfigPolicy.PREFER_RGB_565;
+    private volatile HttpCachePolicy cachePolicy = new HttpCachePolicy(DEFAULT_TTL, DEFAULT_STALE_WHILE_REVALIDATE);
 
     /**
      *
@@ -53,30 +94,69 @@ public class ImageLoader
 
             // 1/6th of the available memory for this memory cache.
             final int cacheSize = maxMemory / 6;
+            memoryCacheSize = cacheSize;
+
+            // Half as much again for evicted bitmaps kept for reuse
+            bitmapPoolSize = cacheSize / 2 * 1024L;
+            bitmapPool = new BitmapPool(bitmapPoolSize);
+
+            // Encoded images of the bitmaps evicted from it, direct buffers still count against the heap on ART
+            encodedMemoryCacheSize = maxMemory / 16 * 1024L;
+            encodedMemoryCache = new EncodedMemoryCache(encodedMemoryCacheSize);
 
             memoryCache = new LruCache<String, Bitmap>(cacheSize) {
                 @Override
                 protected int sizeOf(String key, Bitmap bitmap) {
                     // The cache size will be measured in kilobytes rather than
                     // number of items.
-                    return bitmap.getByteCount() / 1024;
+                    return bitmap.getAllocationByteCount() / 1024;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                    if (evicted)
+                    {
+                        metrics.memoryEvictions.incrementAndGet();
+                        bitmapPool.recycle(oldValue);
+                    }
                 }
             };
 
-            imageViewMap = Collections.synchronizedMap(new WeakHashMap());
+            diskExecutor = new StageExecutor(DISK_THREADS, STAGE_QUEUE_CAPACITY, true, new ImageThreadFactory("ImageLoader Disk"));
+            networkExecutor = new StageExecutor(NETWORK_THREADS, STAGE_QUEUE_CAPACITY, true, new ImageThreadFactory("ImageLoader Network"));
+            decodeExecutor = new StageExecutor(DECODE_THREADS, STAGE_QUEUE_CAPACITY, false, new ImageThreadFactory("ImageLoader Decode"));
+            metrics = new ImageLoaderMetrics(diskExecutor, networkExecutor, decodeExecutor);
+            diskExecutor.setQueueWaitHistogram(metrics.queueWait);
+            networkExecutor.setQueueWaitHistogram(metrics.queueWait);
+            decodeExecutor.setQueueWaitHistogram(metrics.queueWait);
+            diskWriteQueue = new DiskWriteQueue(DISK_WRITE_QUEUE_SIZE, new ImageThreadFactory("ImageLoader Disk Write"));
+            imageFetcher = new ImageFetcher(encodedMemoryCache, diskWriteQueue, metrics);
+            handler = new Handler(Looper.getMainLooper());
+
+            DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+            screenWidth = displayMetrics.widthPixels;
+            screenHeight = displayMetrics.heightPixels;
 
-            executorService = Executors.newFixedThreadPool(5, new ImageThreadFactory());
-            handler = new Handler();
+            context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    trimMemory(level);
+                }
+
+                @Override
+                public void onLowMemory() {
+                    trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+                }
 
-            DisplayMetrics metrics = context.getResources().getDisplayMetrics();
-            screenWidth = metrics.widthPixels;
-            screenHeight = metrics.heightPixels;
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                }
+            });
 
             /**
              * Disk cache initialization
              */
-            File cacheDir = getDiskCacheDir(context);
-            new InitDiskCacheTask().execute(cacheDir);
+            new InitDiskCacheTask().execute(context.getApplicationContext());
         }
         catch (Exception e)
         {
@@ -101,324 +181,404 @@ public class ImageLoader
     }
 
     /**
-     * For disk cache initialization
+     * For disk cache initialization, resolving the cache directory touches the disk too so it is
+     * done here rather than on the calling thread
      */
-    class InitDiskCacheTask extends AsyncTask<File, Void, Void> {
+    class InitDiskCacheTask extends AsyncTask<Context, Void, Void> {
         @Override
-        protected Void doInBackground(File... params) {
-            synchronized (diskCacheLock)
+        protected Void doInBackground(Context... params) {
+            try
             {
-                try
-                {
-                    File cacheDir = params[0];
-                    diskLruCache = SimpleDiskCache.open(cacheDir, 1, DISK_CACHE_SIZE);
-                    diskCacheStarting = false; // Finished initialization
-                    diskCacheLock.notifyAll(); // Wake any waiting threads
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+                File cacheDir = getDiskCacheDir(params[0]);
+                SimpleDiskCache diskCache = SimpleDiskCache.open(cacheDir, 1, DISK_CACHE_SIZE);
+                diskCache.setBitmapPool(bitmapPool);
+                diskLruCache = diskCache;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                // Finished initialization, without a disk cache if it could not be opened.
+                // Wake any waiting threads
+                diskCacheStarting.countDown();
             }
             return null;
         }
     }
 
     /**
-     * Load image on image view
+     * Scheduling priority of a load. Within a priority the most recent load runs first.
+     */
+    public enum Priority
+    {
+        LOW,
+        NORMAL,
+        HIGH
+    }
+
+    /**
+     * Load image on image view. Any earlier request bound to the same image view is cancelled.
+     *
+     * @param imageView
+     * @param imageUrl
+     * @return handle of the request, tagged on the image view until it is rebound
+     */
+    public ImageRequest load(ImageView imageView, String imageUrl)
+    {
+        return load(imageView, imageUrl, Priority.NORMAL);
+    }
+
+    /**
+     * Load image on image view. Any earlier request bound to the same image view is cancelled.
+     *
+     * @param imageView
+     * @param imageUrl
+     * @param priority HIGH for images the user is waiting on, like a full screen view
+     * @return handle of the request, tagged on the image view until it is rebound
+     */
+    public ImageRequest load(ImageView imageView, String imageUrl, Priority priority)
+    {
+        return load(imageView, imageUrl, priority, false);
+    }
+
+    /**
+     * Load image on image view. Any earlier request bound to the same image view is cancelled.
+     *
+     * @param imageView
+     * @param imageUrl
+     * @param priority HIGH for images the user is waiting on, like a full screen view
+     * @param progressive show a low resolution preview as soon as part of the image is downloaded,
+     *                    replaced by the full image once it is decoded
+     * @return handle of the request, tagged on the image view until it is rebound
+     */
+    public ImageRequest load(ImageView imageView, String imageUrl, Priority priority, boolean progressive)
+    {
+        return load(imageView, imageUrl, priority, progressive, configPolicy);
+    }
+
+    /**
+     * Load image on image view. Any earlier request bound to the same image view is cancelled.
+     * The image is decoded for the size of the image view, if that is only known after layout
+     * the load starts once the view is laid out.
      *
      * @param imageView
      * @param imageUrl
+     * @param priority HIGH for images the user is waiting on, like a full screen view
+     * @param progressive show a low resolution preview as soon as part of the image is downloaded,
+     *                    replaced by the full image once it is decoded
+     * @param configPolicy how the bitmap config is picked for this image, instead of the loader's
+     * @return handle of the request, tagged on the image view until it is rebound
      */
-    public void load(ImageView imageView, String imageUrl)
+    public ImageRequest load(ImageView imageView, String imageUrl, Priority priority, boolean progressive,
+                             DecodeConfigPolicy configPolicy)
     {
         try {
-            if(imageView != null && imageUrl != null)
+            if(imageView != null && imageUrl != null && priority != null && configPolicy != null)
             {
-                imageView.setImageResource(0);
-                imageViewMap.put(imageView, imageUrl);
+                ImageRequest previousRequest = (ImageRequest) imageView.getTag(R.id.image_loader_request);
+                ImageRequest imageRequest = new ImageRequest(imageUrl, imageView,
+                        getTargetWidth(imageView), getTargetHeight(imageView), configPolicy, priority, true, progressive);
 
-                /**
-                 * Check in disk and disk cache
-                 */
-                Bitmap bitmap = getBitmapFromMemCache(imageUrl);
+                imageView.setImageResource(0);
+                imageView.setTag(R.id.image_loader_request, imageRequest);
 
-                if (bitmap != null)
-                    loadImageIntoImageView(imageView, bitmap, imageUrl);
+                if (imageRequest.getTargetWidth() > 0 && imageRequest.getTargetHeight() > 0)
+                {
+                    startImageRequest(imageRequest);
+                }
                 else
-                    executorService.submit(new LoaderImageTask(new ImageRequest(imageUrl, imageView)));
+                {
+                    // Sized by its parent or its content, a guess now would be cached and decoded
+                    // under a size the view does not end up with
+                    imageView.getViewTreeObserver().addOnPreDrawListener(new DeferredLoad(imageRequest));
+                }
+
+                // Cancel after the new request is attached so a rebind to the same url keeps its download
+                if (previousRequest != null)
+                {
+                    previousRequest.cancel();
+                    if (previousRequest.getDisplayedBitmap() != null)
+                        bitmapPool.release(previousRequest.getDisplayedBitmap());
+                }
+
+                return imageRequest;
             }
             else
             {
-                throw new IllegalArgumentException("Image View and Url should not be null.");
+                throw new IllegalArgumentException("Image View, Url, Priority and config policy should not be null.");
             }
         }catch (Exception e)
         {
             e.printStackTrace();
         }
+
+        return null;
     }
 
     /**
+     * Check in memory cache, disk cache and network are checked in background. Main thread only.
      *
-     * @param imageView
-     * @param bitmap
-     * @param imageUrl
+     * @param imageRequest sized for its image view
      */
-    private synchronized void loadImageIntoImageView(ImageView imageView, Bitmap bitmap, String imageUrl)
+    private void startImageRequest(ImageRequest imageRequest)
     {
-        try
+        Bitmap bitmap = getBitmapFromMemCache(imageRequest.getMemoryCacheKey());
+
+        if (bitmap != null)
         {
-            Bitmap scaledBitmap = scaleBitmapForLoad(bitmap, imageView.getWidth(), imageView.getHeight());
-            if (scaledBitmap != null)
-            {
-                if (!isImageViewReused(new ImageRequest(imageUrl, imageView)))
-                    imageView.setImageBitmap(scaledBitmap);
-            }
+            metrics.memoryHits.incrementAndGet();
+            loadImageIntoImageView(imageRequest, bitmap);
         }
-        catch (Exception e)
+        else
         {
-            e.printStackTrace();
+            metrics.memoryMisses.incrementAndGet();
+            submitImageRequest(imageRequest);
         }
+
+        if (memoryCacheSizer.recordAccess(bitmap != null))
+            resizeMemoryCaches();
     }
 
     /**
+     * Set how the bitmap config of decodes is picked, for requests that do not pick their own.
+     * PREFER_RGB_565 by default.
      *
-     * @param imageRequest
-     * @return
+     * @param configPolicy
      */
-    private boolean isImageViewReused(ImageRequest imageRequest) {
-        String tag = (String)imageViewMap.get(imageRequest.getImageView());
-        return tag == null || tag != imageRequest.getImgUrl();
+    public void setDecodeConfigPolicy(DecodeConfigPolicy configPolicy)
+    {
+        if (configPolicy == null)
+            throw new IllegalArgumentException("Config policy should not be null.");
+        this.configPolicy = configPolicy;
     }
 
     /**
+     * Set how long downloaded images are used without asking the server, for responses that do
+     * not say so in their Cache-Control or Expires headers.
      *
-     * @param key
-     * @param bitmap
+     * @param ttl milliseconds an image is used as is
+     * @param staleWhileRevalidate milliseconds after that the image is still shown while it is
+     *                             revalidated in the background, after that it is revalidated
+     *                             before it is shown
      */
-    public void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-        try {
-            // Add to memory cache
-            memoryCache.put(key, bitmap);
+    public void setFreshnessPolicy(long ttl, long staleWhileRevalidate)
+    {
+        cachePolicy = new HttpCachePolicy(ttl, staleWhileRevalidate);
+    }
 
-            // Also add to disk cache
-            synchronized (diskCacheLock) {
-                if (diskLruCache != null && diskLruCache.getBitmap(key) == null)
-                {
-                    /**
-                     * Save in Disk Cache.
-                     */
-                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, 100,  stream);
-                    BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(stream.toByteArray()));
-
-                    diskLruCache.put(key, inputStream);
-                }
-            }
-        }
-        catch (Exception e)
+    /**
+     * Shrink the memory cache and bitmap pool for a ComponentCallbacks2 trim level. Called by the
+     * loader itself on trim and low memory callbacks, apps that trim on their own can call it too.
+     * The caches grow back once the pressure is over and the memory cache misses.
+     *
+     * @param level
+     */
+    public void trimMemory(int level)
+    {
+        if (memoryCacheSizer.trim(level))
+            resizeMemoryCaches();
+    }
+
+    private void resizeMemoryCaches()
+    {
+        int cacheSize = (int) memoryCacheSizer.scale(memoryCacheSize);
+        if (cacheSize <= 0)
         {
-            e.printStackTrace();
+            memoryCache.evictAll();
+            cacheSize = 1; // LruCache needs a positive size, nothing but an empty bitmap fits
         }
+        memoryCache.resize(cacheSize);
+        bitmapPool.setMaxBytes(memoryCacheSizer.scale(bitmapPoolSize));
+        encodedMemoryCache.setMaxBytes(memoryCacheSizer.scale(encodedMemoryCacheSize));
     }
 
     /**
+     * Hit counts, stage latencies and queue depths since the loader was created
      *
-     * @param key
      * @return
      */
-    private synchronized Bitmap getBitmapFromMemCache(String key)
+    public ImageLoaderMetrics getMetrics()
     {
-        /**
-         * Check in memory cache
-         */
-        Bitmap bitmap = memoryCache.get(key);
-
-        /**
-         * If not fount in memory cache check in disk cache
-         */
-        if(bitmap == null)
-            bitmap = getBitmapFromDiskCache(key);
-        else
-            Log.e("@getBMFromMemCache()", "Retrieved from Memory cache");
+        return metrics;
+    }
 
-        return bitmap;
+    /**
+     * Fetch images ahead of time at low priority, without an image view. They are stored in the
+     * disk cache so the load that follows skips the network.
+     *
+     * @param imageUrls
+     * @param targetWidth
+     * @param targetHeight
+     * @return handles of the prefetches, cancel them if the images are no longer needed
+     */
+    public List<ImageRequest> prefetch(List<String> imageUrls, int targetWidth, int targetHeight)
+    {
+        return prefetch(imageUrls, targetWidth, targetHeight, false);
     }
 
     /**
+     * Fetch images ahead of time at low priority, without an image view.
      *
-     * @param key
-     * @return
+     * @param imageUrls
+     * @param targetWidth width of the image views the images will be loaded in
+     * @param targetHeight height of the image views the images will be loaded in
+     * @param warmMemoryCache also decode them into the memory cache for that size, so the load that
+     *                        follows is a memory hit
+     * @return handles of the prefetches, cancel them if the images are no longer needed
      */
-    public Bitmap getBitmapFromDiskCache(String key)
+    public List<ImageRequest> prefetch(List<String> imageUrls, int targetWidth, int targetHeight, boolean warmMemoryCache)
     {
-        synchronized (diskCacheLock)
-        {
-            try
+        List<ImageRequest> imageRequests = new ArrayList<>();
+        try {
+            if (imageUrls == null || targetWidth <= 0 || targetHeight <= 0)
+                throw new IllegalArgumentException("Urls should not be null and target size should be positive.");
+
+            for (String imageUrl : imageUrls)
             {
-                // Wait while disk cache is started from background thread
-                while (diskCacheStarting) {
-                    try {
-                        diskCacheLock.wait();
-                    }
-                    catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+                if (imageUrl == null)
+                    continue;
 
-                /**
-                 * get bitmap if availble
-                 */
-                if (diskLruCache != null)
-                {
-                    if(diskLruCache.getBitmap(key) != null) {
-                        Log.e("@getBMFromDiskCache()", "Retrieved from Disk cache");
-                        return diskLruCache.getBitmap(key).getBitmap();
-                    }
-                }
-            }
-            catch (IOException e) {
-                e.printStackTrace();
+                ImageRequest imageRequest = new ImageRequest(imageUrl, null, targetWidth, targetHeight,
+                        configPolicy, Priority.LOW, warmMemoryCache);
+                if (warmMemoryCache && memoryCache.get(imageRequest.getMemoryCacheKey()) != null)
+                    continue;
+
+                submitImageRequest(imageRequest);
+                imageRequests.add(imageRequest);
             }
         }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
 
-        return null;
+        return imageRequests;
     }
 
     /**
-     * Background thread to download image
+     * Width to decode for, the laid out width or the one requested by the layout params before the
+     * first layout pass.
+     *
+     * @param imageView
+     * @return 0 if it is only known after layout
      */
-    public class LoaderImageTask implements Runnable
+    private static int getTargetWidth(ImageView imageView)
     {
-        private ImageRequest imageRequest;
-
-        /**
-         *
-         * @param imageRequest
-         */
-        public LoaderImageTask(ImageRequest imageRequest) {
-            super();
-            this.imageRequest = imageRequest;
-        }
-
-        @Override
-        public void run()
-        {
-            try {
-                if (isImageViewReused(imageRequest))
-                    return;
+        if (imageView.getWidth() > 0)
+            return imageView.getWidth();
 
-                Bitmap bitmap = downloadBitmapFromURL(imageRequest.getImgUrl());
-                addBitmapToMemoryCache(imageRequest.getImgUrl(), bitmap);
-
-                if (isImageViewReused(imageRequest))
-                    return;
+        ViewGroup.LayoutParams layoutParams = imageView.getLayoutParams();
+        if (layoutParams != null && layoutParams.width > 0)
+            return layoutParams.width;
 
-                /**
-                 * Update ImageView UI
-                 */
-                handler.post(new DisplayBitmap(imageRequest));
-            }
-            catch (Exception e)
-            {
-                e.printStackTrace();
-            }
-        }
+        return 0;
     }
 
     /**
      *
+     * @param imageView
+     * @return 0 if it is only known after layout
      */
-    public class ImageRequest {
-        private String imgUrl;
-        private ImageView imageView;
-
-        public String getImgUrl() {
-            return imgUrl;
-        }
+    private static int getTargetHeight(ImageView imageView)
+    {
+        if (imageView.getHeight() > 0)
+            return imageView.getHeight();
 
-        public ImageView getImageView() {
-            return imageView;
-        }
+        ViewGroup.LayoutParams layoutParams = imageView.getLayoutParams();
+        if (layoutParams != null && layoutParams.height > 0)
+            return layoutParams.height;
 
-        public ImageRequest(String imgUrl, ImageView imageView) {
-            this.imgUrl = imgUrl;
-            this.imageView = imageView;
-        }
+        return 0;
     }
 
     /**
-     * Runnable to display image view on UI
+     * Memory cache key of a bitmap decoded for the given target size and config policy
+     *
+     * @param imageUrl
+     * @param width
+     * @param height
+     * @param configPolicy
+     * @return
      */
-    public final class DisplayBitmap implements Runnable
+    static String getMemoryCacheKey(String imageUrl, int width, int height, DecodeConfigPolicy configPolicy)
     {
-        private ImageRequest imageRequest;
-
-        public void run() {
-            if (!isImageViewReused(this.imageRequest)) {
-                loadImageIntoImageView(this.imageRequest.getImageView(), getBitmapFromMemCache(this.imageRequest.getImgUrl()), this.imageRequest.getImgUrl());
-            }
-        }
-
-        public DisplayBitmap(ImageRequest imageRequest) {
-            super();
-            this.imageRequest = imageRequest;
-        }
+        return imageUrl + "#" + width + "x" + height + "#" + configPolicy.name();
     }
 
     /**
-     *  Set tread priority as background one
+     * Detach the request from its download, the download itself is aborted once no request is left on it.
+     *
+     * @param imageRequest
      */
-    public  class ImageThreadFactory implements ThreadFactory
+    private void cancelImageRequest(ImageRequest imageRequest)
     {
-        @Override
-        public Thread newThread(Runnable runnable) {
-            Thread thread = new Thread(runnable);
-            thread.setName("ImageLoader Thread");
-            thread.setPriority(10);
-            return thread;
+        LoaderImageTask loaderImageTask;
+        synchronized (inFlightTasks)
+        {
+            loaderImageTask = inFlightTasks.get(imageRequest.getImgUrl());
+            if (loaderImageTask == null)
+                return;
+
+            if (!loaderImageTask.removeImageRequest(imageRequest))
+            {
+                // Others still wait for it, it may rank lower without this request
+                loaderImageTask.updateRank();
+                return;
+            }
+
+            inFlightTasks.remove(imageRequest.getImgUrl());
         }
+
+        loaderImageTask.cancel();
     }
 
     /**
-     * Downloading BitMap from URL
+     * Attach the request to the download already in flight for the same url, or start a new one.
      *
-     * @param imageUrl
-     * @return
+     * @param imageRequest
      */
-    public final Bitmap downloadBitmapFromURL(String imageUrl)
+    private void submitImageRequest(ImageRequest imageRequest)
     {
-        BufferedInputStream inputStream = null;
-        try {
-            URL url = new URL(imageUrl);
-            inputStream = new BufferedInputStream(url.openConnection().getInputStream());
-        }
-        catch (Exception e)
+        LoaderImageTask loaderImageTask;
+        synchronized (inFlightTasks)
         {
-            e.printStackTrace();
+            loaderImageTask = inFlightTasks.get(imageRequest.getImgUrl());
+            if (loaderImageTask != null)
+            {
+                // The task moves up to this request's priority and to the front of it
+                loaderImageTask.addImageRequest(imageRequest);
+                loaderImageTask.updateRank();
+                return;
+            }
+
+            loaderImageTask = new LoaderImageTask(imageRequest);
+            inFlightTasks.put(imageRequest.getImgUrl(), loaderImageTask);
         }
 
-        return scaleBitmap(inputStream, screenWidth, screenHeight);
+        // Also when the encoded memory cache has it, the decode stage runs its rejected stages on
+        // the submitting thread, which must not be the UI thread
+        loaderImageTask.submitStage(diskExecutor, loaderImageTask);
     }
 
     /**
+     * The bitmap is already sized for the request, so this only has to set it on the main thread.
+     * The bitmap must have been acquired from the pool, it is released if it is not shown.
      *
+     * @param imageRequest
      * @param bitmap
-     * @param width
-     * @param height
-     * @return
      */
-    public final Bitmap scaleBitmapForLoad(Bitmap bitmap, int width, int height)
+    private void loadImageIntoImageView(ImageRequest imageRequest, Bitmap bitmap)
     {
-        try {
-            if (width != 0 && height != 0)
+        try
+        {
+            ImageView imageView = imageRequest.getImageView();
+            if (!isImageViewReused(imageRequest) && imageView.getTag(R.id.image_loader_request) == imageRequest)
             {
-                ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 100,  stream);
-                BufferedInputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(stream.toByteArray()));
-                return scaleBitmap(inputStream, width, height);
-            } else {
-                return bitmap;
+                imageView.setImageBitmap(bitmap);
+                imageRequest.setDisplayedBitmap(bitmap);
+                return;
             }
         }
         catch (Exception e)
@@ -426,62 +586,1092 @@ public class ImageLoader
             e.printStackTrace();
         }
 
-        return null;
+        bitmapPool.release(bitmap);
     }
 
     /**
+     * Rebinding an image view cancels the request it was tagged with, so this is safe to call
+     * from the worker threads without touching the view.
      *
-     * @param inputStream
-     * @param width
-     * @param height
+     * @param imageRequest
      * @return
      */
-    private Bitmap scaleBitmap(BufferedInputStream inputStream, int width, int height)
-    {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        try {
-            inputStream.mark(inputStream.available());
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(inputStream,null, options);
-            options.inSampleSize = calculateInSampleSize(options, width, height);
-            options.inJustDecodeBounds = false;
-            inputStream.reset();
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
-        }
+    private boolean isImageViewReused(ImageRequest imageRequest) {
+        return imageRequest.isCancelled();
+    }
 
-        return BitmapFactory.decodeStream(inputStream, null, options);
+    /**
+     *
+     * @param key
+     * @param bitmap
+     */
+    public void addBitmapToMemoryCache(String key, Bitmap bitmap) {
+        memoryCache.put(key, bitmap);
     }
 
     /**
+     * Memory only, called on the UI thread so it must not wait for the disk cache or other loads.
+     * The bitmap returned is acquired from the pool, in the same step as the lookup so an eviction
+     * on another thread can not pool it before it reaches the image view.
      *
-     * @param options
-     * @param reqWidth
-     * @param reqHeight
+     * @param key memory cache key of the sized bitmap
      * @return
      */
-    private  int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight)
+    private Bitmap getBitmapFromMemCache(String key)
     {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
+        /**
+         * Check in memory cache
+         */
+        Bitmap bitmap;
+        synchronized (bitmapPool) {
+            bitmap = memoryCache.get(key);
+            if (bitmap != null)
+                bitmapPool.acquire(bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Wait while disk cache is started from background thread
+     *
+     * @return the disk cache or null if it could not be opened
+     */
+    private SimpleDiskCache getDiskCache()
+    {
+        // Only blocks until the cache is opened, afterwards this is a volatile read
+        try {
+            diskCacheStarting.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        return diskLruCache;
+    }
+
+    /**
+     * Decode the original bytes stored for the key, sampled down to the requested size
+     *
+     * @param key
+     * @param reqWidth
+     * @param reqHeight
+     * @return
+     */
+    public Bitmap getBitmapFromDiskCache(String key, int reqWidth, int reqHeight)
+    {
+        return getBitmapFromDiskCache(key, reqWidth, reqHeight, configPolicy);
+    }
+
+    /**
+     * Decode the original bytes stored for the key, sampled down to the requested size
+     *
+     * @param key
+     * @param reqWidth
+     * @param reqHeight
+     * @param configPolicy
+     * @return
+     */
+    public Bitmap getBitmapFromDiskCache(String key, int reqWidth, int reqHeight, DecodeConfigPolicy configPolicy)
+    {
+        return getBitmapFromDiskCache(key, reqWidth, reqHeight, configPolicy, null);
+    }
+
+    /**
+     * Same, decoding the original from its bytes if they were already read
+     *
+     * @param key
+     * @param reqWidth
+     * @param reqHeight
+     * @param configPolicy
+     * @param originalBytes null to read the original from the disk cache
+     * @return
+     */
+    private Bitmap getBitmapFromDiskCache(String key, int reqWidth, int reqHeight, DecodeConfigPolicy configPolicy,
+                                          byte[] originalBytes)
+    {
+        SimpleDiskCache diskCache = getDiskCache();
+        if (diskCache == null)
+            return null;
+
+        try
+        {
+            // A downscaled variant reads a fraction of the original's bytes
+            SimpleDiskCache.Variant variant = SimpleDiskCache.Variant.forSize(reqWidth, reqHeight);
+            if (variant != SimpleDiskCache.Variant.ORIGINAL)
+            {
+                if (diskCache.hasVariant(key, variant))
+                {
+                    SimpleDiskCache.BitmapEntry entry = diskCache.getBitmap(key, variant, reqWidth, reqHeight, configPolicy, null);
+                    if (entry != null && entry.getBitmap() != null)
+                        return entry.getBitmap();
+                }
+                else
+                {
+                    requestVariant(diskCache, key, variant);
+                }
+            }
+
+            if (originalBytes != null)
+                return decodeSampledBitmap(originalBytes, reqWidth, reqHeight, configPolicy);
+
+            // The disk cache takes inBitmap from the pool it was given
+            SimpleDiskCache.BitmapEntry entry = diskCache.getBitmap(key, reqWidth, reqHeight, configPolicy, null);
+            if (entry == null)
+                return null;
+
+            return entry.getBitmap();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Queue the generation of a variant at the lowest rank of the disk stage, once per key and
+     * variant while it is remembered. Dropped when the disk stage is busy, a later read asks again.
+     *
+     * @param diskCache
+     * @param key
+     * @param variant
+     */
+    private void requestVariant(final SimpleDiskCache diskCache, final String key, final SimpleDiskCache.Variant variant)
+    {
+        final String requestKey = key + "#" + variant.name();
+        synchronized (variantRequests) {
+            if (variantRequests.get(requestKey) != null)
+                return;
+            variantRequests.put(requestKey, Boolean.TRUE);
+        }
+
+        diskExecutor.enqueue(new StageExecutor.Stage(new Runnable() {
+            @Override
+            public void run() {
+                if (!generateVariant(diskCache, key, variant))
+                {
+                    // Ask again on a later read
+                    synchronized (variantRequests) {
+                        variantRequests.remove(requestKey);
+                    }
+                }
+            }
+        }, Priority.LOW.ordinal(), 0, null));
+    }
+
+    /**
+     * Decode the original close to the variant size and store it scaled to exactly that size
+     *
+     * @param diskCache
+     * @param key
+     * @param variant
+     * @return false if the original was rewritten while it was decoded, the variant is dropped
+     */
+    private boolean generateVariant(SimpleDiskCache diskCache, String key, SimpleDiskCache.Variant variant)
+    {
+        boolean stored = true;
+        try
+        {
+            if (diskCache.hasVariant(key, variant))
+                return true;
+
+            // Read before the original so a rewrite while it is decoded is noticed
+            long writeGeneration = diskCache.getWriteGeneration(key);
+            SimpleDiskCache.BitmapEntry entry = diskCache.getBitmap(key, variant.getSize(), variant.getSize(), DEFAULT_BITMAP_CONFIG, null);
+            if (entry == null || entry.getBitmap() == null)
+                return true;
+
+            Bitmap decoded = entry.getBitmap();
+            int shortestEdge = Math.min(decoded.getWidth(), decoded.getHeight());
+            if (shortestEdge > variant.getSize())
+            {
+                // Not worth a copy when the original is no bigger than the variant
+                float scale = variant.getSize() / (float) shortestEdge;
+                Bitmap scaled = Bitmap.createScaledBitmap(decoded,
+                        Math.max(1, Math.round(decoded.getWidth() * scale)),
+                        Math.max(1, Math.round(decoded.getHeight() * scale)), true);
+                stored = diskCache.putVariant(key, variant, scaled, writeGeneration);
+            }
+
+            bitmapPool.put(decoded);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return stored;
+    }
+
+    /**
+     * Decode downloaded bytes, their disk cache write is queued and may not have happened yet
+     *
+     * @param data
+     * @param reqWidth
+     * @param reqHeight
+     * @param configPolicy
+     * @return
+     */
+    private Bitmap decodeSampledBitmap(byte[] data, int reqWidth, int reqHeight, DecodeConfigPolicy configPolicy)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = configPolicy.resolve(options);
+        if (DecodeConfigPolicy.isPoolable(options.inPreferredConfig))
+            bitmapPool.addInBitmapOptions(options);
+
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        catch (IllegalArgumentException e) {
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Background thread to download image. One task runs per url, every request for that url
+     * made while it is in flight is attached to it and receives the same bitmap.
+     */
+    public class LoaderImageTask implements Runnable
+    {
+        private final String imgUrl;
+        private final List<ImageRequest> imageRequests = new ArrayList<>();
+        private volatile boolean cancelled;
+        private volatile StageExecutor.Stage stage;
+        private volatile StageExecutor stageExecutor;
+        private volatile URLConnection connection;
+        private volatile int priority;
+        private volatile long sequence;
+        // First bytes of the response kept for the preview of progressive requests, network stage only
+        private ByteArrayOutputStream previewBuffer;
+        private int previewThreshold;
+
+        private final ImageFetcher.Listener fetchListener = new ImageFetcher.Listener() {
+            @Override
+            public boolean isCancelled() {
+                return cancelled;
+            }
+
+            @Override
+            public void onConnection(URLConnection connection) {
+                setConnection(connection);
+            }
+
+            @Override
+            public void onResponse(int contentLength) {
+                synchronized (inFlightTasks) {
+                    if (isPreviewRequired()) {
+                        previewThreshold = contentLength > 0
+                                ? Math.max(PREVIEW_MIN_BYTES, contentLength / PREVIEW_SCALE)
+                                : PREVIEW_UNKNOWN_LENGTH_BYTES;
+                        previewBuffer = new ByteArrayOutputStream(previewThreshold);
+                    }
+                }
+            }
+
+            @Override
+            public void onBytes(byte[] buffer, int count) {
+                if (previewBuffer != null)
+                    collectPreview(buffer, count);
+            }
+        };
+
+        /**
+         *
+         * @param imageRequest
+         */
+        public LoaderImageTask(ImageRequest imageRequest) {
+            super();
+            this.imgUrl = imageRequest.getImgUrl();
+            this.imageRequests.add(imageRequest);
+            this.priority = imageRequest.getPriority().ordinal();
+            this.sequence = imageRequest.getSequence();
+        }
+
+        /**
+         * Rank the task by its highest priority and newest request still waiting, and move its
+         * queued stage accordingly. Guarded by inFlightTasks
+         */
+        void updateRank() {
+            int priority = -1;
+            long sequence = 0;
+            for (ImageRequest imageRequest : imageRequests) {
+                if (isImageViewReused(imageRequest))
+                    continue;
+                priority = Math.max(priority, imageRequest.getPriority().ordinal());
+                sequence = Math.max(sequence, imageRequest.getSequence());
+            }
+
+            if (priority < 0 || (priority == this.priority && sequence == this.sequence))
+                return;
+
+            this.priority = priority;
+            this.sequence = sequence;
+
+            StageExecutor.Stage stage = this.stage;
+            StageExecutor stageExecutor = this.stageExecutor;
+            if (stage != null && stageExecutor != null)
+                stageExecutor.reorder(stage, priority, sequence);
+        }
+
+        /**
+         * Guarded by inFlightTasks
+         *
+         * @param imageRequest
+         */
+        void addImageRequest(ImageRequest imageRequest) {
+            imageRequests.add(imageRequest);
+        }
+
+        /**
+         * Guarded by inFlightTasks
+         *
+         * @param imageRequest
+         * @return true if no request is left on this task
+         */
+        boolean removeImageRequest(ImageRequest imageRequest) {
+            return imageRequests.remove(imageRequest) && imageRequests.isEmpty();
+        }
+
+        /**
+         * Queue the next stage of this task, only one stage of a task is queued or running at a time
+         *
+         * @param executor
+         * @param work
+         */
+        void submitStage(StageExecutor executor, Runnable work) {
+            StageExecutor.Stage stage = new StageExecutor.Stage(work, priority, sequence, new Runnable() {
+                @Override
+                public void run() {
+                    abandon();
+                }
+            });
+
+            this.stageExecutor = executor;
+            this.stage = stage;
+            if (cancelled)
+                return;
+
+            executor.enqueue(stage);
+        }
+
+        /**
+         * The stage queue was full, a stage threw or the download failed, leave the registry so the
+         * next load of the url starts over instead of joining a task that will not finish
+         */
+        private void abandon() {
+            cancelled = true;
+            leaveRegistry();
+        }
+
+        /**
+         * Requests attaching after this start a new task
+         */
+        private void leaveRegistry() {
+            synchronized (inFlightTasks) {
+                if (inFlightTasks.get(imgUrl) == this)
+                    inFlightTasks.remove(imgUrl);
+            }
+        }
+
+        /**
+         * Guarded by inFlightTasks
+         *
+         * @return false if only prefetches of the disk cache wait for this task
+         */
+        private boolean isDecodeRequired() {
+            for (ImageRequest imageRequest : imageRequests) {
+                if (!isImageViewReused(imageRequest) && imageRequest.isDecodeRequired())
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Guarded by inFlightTasks
+         *
+         * @return true if an image view waits for this task with a progressive request
+         */
+        private boolean isPreviewRequired() {
+            for (ImageRequest imageRequest : imageRequests) {
+                if (!isImageViewReused(imageRequest) && imageRequest.isProgressive() && imageRequest.getImageView() != null)
+                    return true;
+            }
+            return false;
+        }
+
+        void setConnection(URLConnection connection) {
+            this.connection = connection;
+            if (cancelled)
+                disconnect();
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Stop the download, closing the connection also aborts a decode reading from it
+         */
+        void cancel() {
+            cancelled = true;
+
+            StageExecutor.Stage stage = this.stage;
+            StageExecutor stageExecutor = this.stageExecutor;
+            if (stage != null && stageExecutor != null)
+                stageExecutor.cancel(stage);
+
+            // Closing the socket may block, cancel is called from the UI thread on rebind
+            if (connection != null)
+            {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        disconnect();
+                    }
+                });
+            }
+        }
+
+        private void disconnect() {
+            URLConnection connection = this.connection;
+            if (connection instanceof HttpURLConnection)
+                ((HttpURLConnection) connection).disconnect();
+        }
+
+        /**
+         * Guarded by inFlightTasks
+         *
+         * @return
+         */
+        private boolean isAnyImageViewWaiting() {
+            for (ImageRequest imageRequest : imageRequests) {
+                if (!isImageViewReused(imageRequest))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         *
+         * @param diskCache
+         * @return true if every request waiting for a decode is served by a stored variant
+         */
+        private boolean isServedByVariants(SimpleDiskCache diskCache) {
+            List<ImageRequest> waitingRequests;
+            synchronized (inFlightTasks) {
+                waitingRequests = new ArrayList<>(imageRequests);
+            }
+
+            for (ImageRequest imageRequest : waitingRequests) {
+                if (isImageViewReused(imageRequest) || !imageRequest.isDecodeRequired())
+                    continue;
+                SimpleDiskCache.Variant variant = SimpleDiskCache.Variant.forSize(imageRequest.getTargetWidth(), imageRequest.getTargetHeight());
+                if (variant == SimpleDiskCache.Variant.ORIGINAL || !diskCache.hasVariant(imgUrl, variant))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Disk stage, checks the encoded memory cache, then whether the disk cache has the url and
+         * whether it is still fresh
+         */
+        @Override
+        public void run()
+        {
+            boolean waitingForDecode;
+            synchronized (inFlightTasks) {
+                if (cancelled || !isAnyImageViewWaiting()) {
+                    if (inFlightTasks.get(imgUrl) == this)
+                        inFlightTasks.remove(imgUrl);
+                    return;
+                }
+                waitingForDecode = isDecodeRequired();
+            }
+
+            // Only a decode away
+            if (waitingForDecode && encodedMemoryCache.contains(imgUrl) && decodeFromMemory())
+                return;
+
+            final SimpleDiskCache diskCache = getDiskCache();
+            long diskReadStart = System.nanoTime();
+            Map<String, Serializable> cachedMetadata = null;
+            // Downloaded moments ago and still queued for the disk, decoded from memory
+            DiskWriteQueue.PendingWrite pendingWrite = diskWriteQueue.get(imgUrl);
+            final byte[] pendingBytes = pendingWrite != null ? pendingWrite.data : null;
+            // Decoded from, and promoted to the encoded memory cache if fresh so the next load after
+            // an eviction skips the disk. Not read when the waiting requests are served by variants.
+            byte[] diskBytes = null;
+            try {
+                if (pendingWrite != null)
+                {
+                    cachedMetadata = pendingWrite.metadata;
+                }
+                else if (diskCache != null && diskCache.contains(imgUrl))
+                {
+                    SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream(imgUrl);
+                    if (entry != null)
+                    {
+                        try {
+                            cachedMetadata = entry.getMetadata();
+                            // Larger originals are decoded from their file descriptor, never copied to the heap
+                            if (entry.getLength() <= encodedMemoryCache.getMaxEntryBytes() && !isServedByVariants(diskCache))
+                                diskBytes = entry.getBytes();
+                        }
+                        finally {
+                            entry.close();
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+
+            if (cancelled)
+                return;
+
+            metrics.diskRead.recordSince(diskReadStart);
+            (cachedMetadata != null ? metrics.diskHits : metrics.diskMisses).incrementAndGet();
+
+            final Map<String, Serializable> metadata = cachedMetadata;
+            int freshness = cachePolicy.getFreshness(metadata, System.currentTimeMillis());
+            if (metadata != null && freshness != HttpCachePolicy.EXPIRED)
+            {
+                final boolean revalidate = freshness == HttpCachePolicy.STALE;
+                boolean decodeRequired;
+                synchronized (inFlightTasks) {
+                    decodeRequired = isDecodeRequired();
+                    if (!decodeRequired)
+                        leaveRegistry();
+                }
+
+                if (!decodeRequired)
+                {
+                    if (revalidate)
+                        revalidateInBackground(diskCache, metadata);
+                    return;
+                }
+
+                if (diskBytes != null)
+                    encodedMemoryCache.put(imgUrl, diskBytes, metadata);
+
+                final byte[] decodeBytes = pendingBytes != null ? pendingBytes : diskBytes;
+                submitStage(decodeExecutor, new Runnable() {
+                    @Override
+                    public void run() {
+                        decode(pendingBytes == null, decodeBytes);
+                        if (revalidate)
+                            revalidateInBackground(diskCache, metadata);
+                    }
+                });
+            }
+            else
+            {
+                // Not cached, or expired and revalidated with a conditional GET
+                submitStage(networkExecutor, new Runnable() {
+                    @Override
+                    public void run() {
+                        download(diskCache, metadata);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Disk stage, queue the decode of an image in the encoded memory cache
+         *
+         * @return false if it was evicted since, or expired and needs revalidating first
+         */
+        private boolean decodeFromMemory()
+        {
+            final EncodedMemoryCache.EncodedImage encodedImage = encodedMemoryCache.get(imgUrl);
+            final int freshness = encodedImage != null
+                    ? cachePolicy.getFreshness(encodedImage.metadata, System.currentTimeMillis())
+                    : HttpCachePolicy.EXPIRED;
+            if (freshness == HttpCachePolicy.EXPIRED)
+                return false;
+
+            metrics.encodedMemoryHits.incrementAndGet();
+            submitStage(decodeExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    decode(false, encodedImage.data);
+                    if (freshness == HttpCachePolicy.STALE)
+                        revalidateInBackground(getDiskCache(), encodedImage.metadata);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Revalidate a stale entry that was just served, once the views have it. Runs detached from
+         * the views and the registry, at the lowest priority.
+         *
+         * @param diskCache
+         * @param cachedMetadata
+         */
+        private void revalidateInBackground(final SimpleDiskCache diskCache, final Map<String, Serializable> cachedMetadata)
+        {
+            if (cancelled)
+                return;
+
+            priority = Priority.LOW.ordinal();
+            submitStage(networkExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    fetch(diskCache, cachedMetadata);
+                }
+            });
+        }
+
+        /**
+         * Network stage
+         *
+         * @param diskCache may be null
+         * @param cachedMetadata metadata of the expired disk cache entry, null if not cached
+         */
+        private void download(SimpleDiskCache diskCache, Map<String, Serializable> cachedMetadata)
+        {
+            synchronized (inFlightTasks) {
+                if (cancelled || !isAnyImageViewWaiting()) {
+                    abandon();
+                    return;
+                }
+            }
+
+            ImageFetcher.Result result = fetch(diskCache, cachedMetadata);
+
+            if (cancelled)
+                return;
+
+            synchronized (inFlightTasks) {
+                if (!isDecodeRequired()) {
+                    leaveRegistry();
+                    return;
+                }
+            }
+
+            final ImageFetcher.Copy copy = imageFetcher.getCopy(imgUrl, diskCache, result);
+            if (copy == null)
+            {
+                abandon();
+                return;
+            }
+
+            submitStage(decodeExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    decode(copy.diskCached, copy.data);
+                }
+            });
+        }
+
+        /**
+         * Request the image, conditionally if it is cached, see ImageFetcher
+         *
+         * @param diskCache may be null
+         * @param cachedMetadata metadata of the cached copy to revalidate, null if not cached
+         * @return
+         */
+        private ImageFetcher.Result fetch(SimpleDiskCache diskCache, Map<String, Serializable> cachedMetadata)
+        {
+            try {
+                return imageFetcher.fetch(imgUrl, diskCache, cachedMetadata, cachePolicy, fetchListener);
+            }
+            finally {
+                previewBuffer = null;
+            }
+        }
+
+        /**
+         * Keep the first bytes of the response, once there are enough queue the preview decode
+         *
+         * @param buffer
+         * @param count
+         */
+        private void collectPreview(byte[] buffer, int count)
+        {
+            previewBuffer.write(buffer, 0, count);
+            if (previewBuffer.size() < previewThreshold)
+                return;
+
+            final byte[] partialBytes = previewBuffer.toByteArray();
+            previewBuffer = null;
+
+            // Not the task's own stage, the download keeps running alongside it
+            decodeExecutor.enqueue(new StageExecutor.Stage(new Runnable() {
+                @Override
+                public void run() {
+                    decodePreview(partialBytes);
+                }
+            }, priority, sequence, null));
+        }
+
+        /**
+         * Decode what arrived so far, heavily sampled, for the progressive requests. A truncated
+         * progressive JPEG decodes its early scans, other images decode the part they have.
+         * Previews are not cached and not pooled.
+         *
+         * @param partialBytes
+         */
+        private void decodePreview(byte[] partialBytes)
+        {
+            List<ImageRequest> waitingRequests;
+            synchronized (inFlightTasks) {
+                waitingRequests = new ArrayList<>(imageRequests);
+            }
+
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(partialBytes, 0, partialBytes.length, bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+                return;
+
+            for (ImageRequest imageRequest : waitingRequests) {
+                if (cancelled || isImageViewReused(imageRequest) || !imageRequest.isProgressive() || imageRequest.getImageView() == null)
+                    continue;
+
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = imageRequest.getConfigPolicy().resolve(bounds);
+                options.inSampleSize = SampleSize.calculate(bounds.outWidth, bounds.outHeight,
+                        Math.max(1, imageRequest.getTargetWidth() / PREVIEW_SCALE),
+                        Math.max(1, imageRequest.getTargetHeight() / PREVIEW_SCALE));
+
+                Bitmap preview = BitmapFactory.decodeByteArray(partialBytes, 0, partialBytes.length, options);
+                if (preview != null)
+                    handler.post(new DisplayPreview(imageRequest, preview));
+            }
+        }
+
+        /**
+         * Decode stage, decodes the sized bitmap of every waiting request here rather than on the
+         * UI thread, requests for the same size share one
+         *
+         * @param diskCached stored variants are decoded where they serve a request
+         * @param imageBytes the image, null to read the original from the disk cache
+         */
+        private void decode(boolean diskCached, byte[] imageBytes)
+        {
+            List<ImageRequest> waitingRequests;
 
-        if (height > reqHeight || width > reqWidth) {
+            // Requests attaching after this point start a new task, which finds the image on disk
+            synchronized (inFlightTasks) {
+                if (inFlightTasks.get(imgUrl) == this)
+                    inFlightTasks.remove(imgUrl);
+                waitingRequests = new ArrayList<>(imageRequests);
+            }
+
+            if (cancelled)
+                return;
+
+            for (ImageRequest imageRequest : waitingRequests) {
+                if (isImageViewReused(imageRequest) || !imageRequest.isDecodeRequired())
+                    continue;
+
+                Bitmap sizedBitmap = getBitmapFromMemCache(imageRequest.getMemoryCacheKey());
+                if (sizedBitmap == null)
+                {
+                    long decodeStart = System.nanoTime();
+                    if (diskCached)
+                        sizedBitmap = getBitmapFromDiskCache(imgUrl, imageRequest.getTargetWidth(), imageRequest.getTargetHeight(), imageRequest.getConfigPolicy(), imageBytes);
+                    else
+                        sizedBitmap = decodeSampledBitmap(imageBytes, imageRequest.getTargetWidth(), imageRequest.getTargetHeight(), imageRequest.getConfigPolicy());
+                    metrics.decode.recordSince(decodeStart);
 
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
+                    if (sizedBitmap == null)
+                        continue;
+                    bitmapPool.acquire(sizedBitmap);
+                    addBitmapToMemoryCache(imageRequest.getMemoryCacheKey(), sizedBitmap);
+                }
 
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) >= reqHeight && (halfWidth / inSampleSize) >= reqWidth) {
-                inSampleSize *= 2;
+                /**
+                 * Update ImageView UI, prefetches only warm the memory cache
+                 */
+                if (imageRequest.getImageView() != null)
+                    handler.post(new DisplayBitmap(imageRequest, sizedBitmap));
+                else
+                    bitmapPool.release(sizedBitmap);
             }
         }
+    }
+
+    /**
+     * Handle of a single load, cancel it to stop the download once no other view waits for the url.
+     */
+    public class ImageRequest {
+        private String imgUrl;
+        private ImageView imageView;
+        private int targetWidth;
+        private int targetHeight;
+        private DecodeConfigPolicy configPolicy;
+        private Priority priority;
+        private long sequence;
+        private boolean decodeRequired;
+        private boolean progressive;
+        private String memoryCacheKey;
+        private Bitmap displayedBitmap;
+        private volatile boolean cancelled;
+
+        public String getImgUrl() {
+            return imgUrl;
+        }
+
+        public ImageView getImageView() {
+            return imageView;
+        }
+
+        public int getTargetWidth() {
+            return targetWidth;
+        }
+
+        public int getTargetHeight() {
+            return targetHeight;
+        }
+
+        public DecodeConfigPolicy getConfigPolicy() {
+            return configPolicy;
+        }
 
-        return inSampleSize;
+        public String getMemoryCacheKey() {
+            return memoryCacheKey;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Order of creation, later requests are served first within a priority
+         *
+         * @return
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * False for prefetches that only warm the disk cache
+         *
+         * @return
+         */
+        public boolean isDecodeRequired() {
+            return decodeRequired;
+        }
+
+        /**
+         * True to show a low resolution preview while the image downloads
+         *
+         * @return
+         */
+        public boolean isProgressive() {
+            return progressive;
+        }
+
+        /**
+         *
+         * @param imgUrl
+         * @param imageView null for prefetches
+         * @param targetWidth
+         * @param targetHeight
+         * @param configPolicy
+         * @param priority
+         * @param decodeRequired
+         */
+        public ImageRequest(String imgUrl, ImageView imageView, int targetWidth, int targetHeight, DecodeConfigPolicy configPolicy,
+                            Priority priority, boolean decodeRequired) {
+            this(imgUrl, imageView, targetWidth, targetHeight, configPolicy, priority, decodeRequired, false);
+        }
+
+        /**
+         *
+         * @param imgUrl
+         * @param imageView null for prefetches
+         * @param targetWidth
+         * @param targetHeight
+         * @param configPolicy
+         * @param priority
+         * @param decodeRequired
+         * @param progressive
+         */
+        public ImageRequest(String imgUrl, ImageView imageView, int targetWidth, int targetHeight, DecodeConfigPolicy configPolicy,
+                            Priority priority, boolean decodeRequired, boolean progressive) {
+            this.imgUrl = imgUrl;
+            this.decodeRequired = decodeRequired;
+            this.progressive = progressive;
+            this.imageView = imageView;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.configPolicy = configPolicy;
+            this.priority = priority;
+            this.sequence = requestSequence.incrementAndGet();
+            this.memoryCacheKey = ImageLoader.getMemoryCacheKey(imgUrl, targetWidth, targetHeight, configPolicy);
+        }
+
+        /**
+         * Size of the image view once it is laid out, main thread only and before the request
+         * is started
+         *
+         * @param targetWidth
+         * @param targetHeight
+         */
+        void setTargetSize(int targetWidth, int targetHeight) {
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.memoryCacheKey = ImageLoader.getMemoryCacheKey(imgUrl, targetWidth, targetHeight, configPolicy);
+        }
+
+        /**
+         * Bitmap set on the image view for this request, main thread only
+         *
+         * @return
+         */
+        Bitmap getDisplayedBitmap() {
+            return displayedBitmap;
+        }
+
+        void setDisplayedBitmap(Bitmap displayedBitmap) {
+            this.displayedBitmap = displayedBitmap;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void cancel() {
+            if (cancelled)
+                return;
+
+            cancelled = true;
+            cancelImageRequest(this);
+        }
+    }
+
+    /**
+     * Runnable to display image view on UI
+     */
+    public final class DisplayBitmap implements Runnable
+    {
+        private ImageRequest imageRequest;
+        private Bitmap bitmap;
+        private long postedNanos;
+
+        public void run() {
+            metrics.display.recordSince(this.postedNanos);
+            if (!isImageViewReused(this.imageRequest)) {
+                loadImageIntoImageView(this.imageRequest, this.bitmap);
+            }
+            else {
+                bitmapPool.release(this.bitmap);
+            }
+        }
+
+        public DisplayBitmap(ImageRequest imageRequest, Bitmap bitmap) {
+            super();
+            this.imageRequest = imageRequest;
+            this.bitmap = bitmap;
+            this.postedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Starts a request once its image view is laid out and its size is known, unless it was
+     * rebound in the meantime. A view still empty after layout, like a wrap_content one without an
+     * image, is loaded for the screen size.
+     */
+    public final class DeferredLoad implements ViewTreeObserver.OnPreDrawListener
+    {
+        private ImageRequest imageRequest;
+
+        public boolean onPreDraw() {
+            ImageView imageView = this.imageRequest.getImageView();
+            ViewTreeObserver viewTreeObserver = imageView.getViewTreeObserver();
+            if (viewTreeObserver.isAlive())
+                viewTreeObserver.removeOnPreDrawListener(this);
+
+            if (isImageViewReused(this.imageRequest) || imageView.getTag(R.id.image_loader_request) != this.imageRequest)
+                return true;
+
+            this.imageRequest.setTargetSize(imageView.getWidth() > 0 ? imageView.getWidth() : screenWidth,
+                    imageView.getHeight() > 0 ? imageView.getHeight() : screenHeight);
+            startImageRequest(this.imageRequest);
+            return true;
+        }
+
+        public DeferredLoad(ImageRequest imageRequest) {
+            super();
+            this.imageRequest = imageRequest;
+        }
+    }
+
+    /**
+     * Runnable to display a progressive preview on UI, until the full image replaces it
+     */
+    public final class DisplayPreview implements Runnable
+    {
+        private ImageRequest imageRequest;
+        private Bitmap preview;
+
+        public void run() {
+            ImageView imageView = this.imageRequest.getImageView();
+            if (!isImageViewReused(this.imageRequest)
+                    && imageView.getTag(R.id.image_loader_request) == this.imageRequest
+                    && this.imageRequest.getDisplayedBitmap() == null) {
+                imageView.setImageBitmap(this.preview);
+            }
+        }
+
+        public DisplayPreview(ImageRequest imageRequest, Bitmap preview) {
+            super();
+            this.imageRequest = imageRequest;
+            this.preview = preview;
+        }
+    }
+
+    /**
+     *  Set tread priority as background one
+     */
+    public  class ImageThreadFactory implements ThreadFactory
+    {
+        private final String name;
+
+        public ImageThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Android thread priority, Thread.setPriority does not map to the background scheduling group
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            });
+            thread.setName(name);
+            return thread;
+        }
+    }
+
+    /**
+     *
+     * @param options
+     * @param reqWidth
+     * @param reqHeight
+     * @return
+     */
+    static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight)
+    {
+        // Raw height and width of image
+        return SampleSize.calculate(options.outWidth, options.outHeight, reqWidth, reqHeight);
     }
 
     /**
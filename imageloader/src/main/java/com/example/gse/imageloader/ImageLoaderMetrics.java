@@ -0,0 +1,231 @@
+package com.example.gse.imageloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of an ImageLoader, for tuning the cache sizes.
+ *
+ * Recording is a few atomic increments on the worker threads. A snapshot reads the atomics without
+ * taking any lock, so its values are each exact but not taken at a single instant.
+ */
+public class ImageLoaderMetrics
+{
+    final AtomicLong memoryHits = new AtomicLong();
+    final AtomicLong memoryMisses = new AtomicLong();
+    final AtomicLong memoryEvictions = new AtomicLong();
+    final AtomicLong encodedMemoryHits = new AtomicLong();
+    final AtomicLong diskHits = new AtomicLong();
+    final AtomicLong diskMisses = new AtomicLong();
+    final AtomicLong diskWritesDropped = new AtomicLong();
+    final AtomicLong networkDownloads = new AtomicLong();
+    final AtomicLong networkNotModified = new AtomicLong();
+    final AtomicLong networkFailures = new AtomicLong();
+    final AtomicLong bytesDownloaded = new AtomicLong();
+
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram diskRead = new LatencyHistogram();
+    final LatencyHistogram download = new LatencyHistogram();
+    final LatencyHistogram decode = new LatencyHistogram();
+    final LatencyHistogram display = new LatencyHistogram();
+
+    private final StageExecutor diskExecutor;
+    private final StageExecutor networkExecutor;
+    private final StageExecutor decodeExecutor;
+
+    ImageLoaderMetrics(StageExecutor diskExecutor, StageExecutor networkExecutor, StageExecutor decodeExecutor)
+    {
+        this.diskExecutor = diskExecutor;
+        this.networkExecutor = networkExecutor;
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    /**
+     *
+     * @return the current values
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Values of the metrics when the snapshot was taken
+     */
+    public static class Snapshot
+    {
+        public final long memoryHits;
+        public final long memoryMisses;
+        public final long memoryEvictions;
+        // Loads decoded from the encoded memory cache, without the disk
+        public final long encodedMemoryHits;
+        public final long diskHits;
+        public final long diskMisses;
+        // Downloads not cached because the disk write queue was full
+        public final long diskWritesDropped;
+        public final long networkDownloads;
+        public final long networkNotModified;
+        public final long networkFailures;
+        public final long bytesDownloaded;
+        public final int diskQueueDepth;
+        public final int networkQueueDepth;
+        public final int decodeQueueDepth;
+        // Stages that threw, their loads were abandoned
+        public final long stageFailures;
+
+        // Time a stage waited in its pool queue
+        public final LatencyHistogram.Snapshot queueWait;
+        // Disk stage, from the index lookup to the entry metadata read
+        public final LatencyHistogram.Snapshot diskRead;
+        // Network stage, from the request to the last byte
+        public final LatencyHistogram.Snapshot download;
+        // One decode, from disk or downloaded bytes
+        public final LatencyHistogram.Snapshot decode;
+        // From posting a bitmap to the main thread to setting it on the view
+        public final LatencyHistogram.Snapshot display;
+
+        private Snapshot(ImageLoaderMetrics metrics)
+        {
+            memoryHits = metrics.memoryHits.get();
+            memoryMisses = metrics.memoryMisses.get();
+            memoryEvictions = metrics.memoryEvictions.get();
+            encodedMemoryHits = metrics.encodedMemoryHits.get();
+            diskHits = metrics.diskHits.get();
+            diskMisses = metrics.diskMisses.get();
+            diskWritesDropped = metrics.diskWritesDropped.get();
+            networkDownloads = metrics.networkDownloads.get();
+            networkNotModified = metrics.networkNotModified.get();
+            networkFailures = metrics.networkFailures.get();
+            bytesDownloaded = metrics.bytesDownloaded.get();
+            diskQueueDepth = metrics.diskExecutor.getQueuedCount();
+            networkQueueDepth = metrics.networkExecutor.getQueuedCount();
+            decodeQueueDepth = metrics.decodeExecutor.getQueuedCount();
+            stageFailures = metrics.diskExecutor.getFailureCount() + metrics.networkExecutor.getFailureCount()
+                    + metrics.decodeExecutor.getFailureCount();
+            queueWait = metrics.queueWait.snapshot();
+            diskRead = metrics.diskRead.snapshot();
+            download = metrics.download.snapshot();
+            decode = metrics.decode.snapshot();
+            display = metrics.display.snapshot();
+        }
+
+        public double getMemoryHitRatio() {
+            return ratio(memoryHits, memoryMisses);
+        }
+
+        public double getDiskHitRatio() {
+            return ratio(diskHits, diskMisses);
+        }
+
+        /**
+         * Downloads and revalidations that succeeded, over all network requests
+         *
+         * @return
+         */
+        public double getNetworkSuccessRatio() {
+            return ratio(networkDownloads + networkNotModified, networkFailures);
+        }
+
+        private static double ratio(long hits, long misses) {
+            long total = hits + misses;
+            return total == 0 ? 0 : hits / (double) total;
+        }
+    }
+
+    /**
+     * Lock-free histogram of durations in power of two millisecond buckets, bucket 0 counts under
+     * a millisecond and bucket i counts [2^(i-1), 2^i) milliseconds.
+     */
+    public static class LatencyHistogram
+    {
+        public static final int BUCKETS = 18; // Last bucket counts everything from about 65 s up
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        /**
+         *
+         * @param startNanos System.nanoTime() when the measured work started
+         */
+        void recordSince(long startNanos)
+        {
+            record(System.nanoTime() - startNanos);
+        }
+
+        void record(long nanos)
+        {
+            long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+            int bucket = millis == 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+            counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            totalNanos.addAndGet(Math.max(0, nanos));
+        }
+
+        Snapshot snapshot()
+        {
+            long[] snapshotCounts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                snapshotCounts[i] = counts.get(i);
+            return new Snapshot(snapshotCounts, totalNanos.get());
+        }
+
+        /**
+         * Bucket counts when the snapshot was taken
+         */
+        public static class Snapshot
+        {
+            private final long[] counts;
+            private final long count;
+            private final long totalNanos;
+
+            private Snapshot(long[] counts, long totalNanos)
+            {
+                long count = 0;
+                for (long bucketCount : counts)
+                    count += bucketCount;
+
+                this.counts = counts;
+                this.count = count;
+                this.totalNanos = totalNanos;
+            }
+
+            public long getCount() {
+                return count;
+            }
+
+            /**
+             *
+             * @param bucket
+             * @return durations recorded in the bucket
+             */
+            public long getBucketCount(int bucket) {
+                return counts[bucket];
+            }
+
+            public double getMeanMillis() {
+                return count == 0 ? 0 : totalNanos / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+            }
+
+            /**
+             *
+             * @param percentile between 0 and 100
+             * @return upper bound in milliseconds of the bucket holding the percentile
+             */
+            public long getPercentileMillis(double percentile)
+            {
+                if (count == 0)
+                    return 0;
+
+                long rank = (long) Math.ceil(count * percentile / 100);
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++)
+                {
+                    seen += counts[i];
+                    if (seen >= rank)
+                        return 1L << i;
+                }
+                return 1L << (counts.length - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.gse.imageloader;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+/**
+ * Current share of their full size the memory cache and bitmap pool may use, in quarters.
+ *
+ * Trim levels reported by the system shrink it right away. It grows back a quarter at a time once
+ * the pressure is over and the memory cache misses more than it should, so an app returning to
+ * the foreground refills its cache as it scrolls instead of all at once.
+ */
+class MemoryCacheSizer
+{
+    static final int FULL = 4;
+
+    // Accesses per hit ratio sample
+    private static final int WINDOW = 64;
+    // Grow while fewer accesses than this hit
+    private static final double GROW_BELOW_HIT_RATIO = 0.8;
+    // No growing this soon after a trim, the system may still be short of memory
+    private static final long TRIM_COOLDOWN = 30 * 1000L;
+
+    private int quarters = FULL;
+    private long lastTrimTime;
+    private int windowHits;
+    private int windowAccesses;
+
+    /**
+     * Shrink for a ComponentCallbacks2 trim level, never grows.
+     *
+     * @param level
+     * @return true if the size changed
+     */
+    synchronized boolean trim(int level)
+    {
+        lastTrimTime = SystemClock.elapsedRealtime();
+        resetWindow();
+
+        int target = getQuarters(level);
+        if (target >= quarters)
+            return false;
+
+        quarters = target;
+        return true;
+    }
+
+    /**
+     * A memory cache lookup of a load
+     *
+     * @param hit
+     * @return true if the size grew
+     */
+    synchronized boolean recordAccess(boolean hit)
+    {
+        if (quarters == FULL)
+            return false;
+
+        if (hit)
+            windowHits++;
+        if (++windowAccesses < WINDOW)
+            return false;
+
+        boolean grow = windowHits < windowAccesses * GROW_BELOW_HIT_RATIO
+                && SystemClock.elapsedRealtime() - lastTrimTime >= TRIM_COOLDOWN;
+        resetWindow();
+
+        if (grow)
+            quarters++;
+        return grow;
+    }
+
+    /**
+     *
+     * @param fullSize
+     * @return the share of the full size allowed now
+     */
+    synchronized long scale(long fullSize)
+    {
+        return fullSize * quarters / FULL;
+    }
+
+    private void resetWindow()
+    {
+        windowHits = 0;
+        windowAccesses = 0;
+    }
+
+    /**
+     *
+     * @param level
+     * @return quarters to keep under the trim level
+     */
+    private static int getQuarters(int level)
+    {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+            return 0; // Next in line to be killed
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            return 1;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+            return 2; // Nothing on screen needs the cache until the app is back
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            return 1;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return 2;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+            return 3;
+        return FULL;
+    }
+}
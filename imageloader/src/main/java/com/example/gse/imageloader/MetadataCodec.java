@@ -0,0 +1,251 @@
+package com.example.gse.imageloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary encoding of the SimpleDiskCache entry metadata.
+ *
+ * Layout: magic, version, entry count, then per entry a key code (0 followed by the key for keys
+ * without one), a value type and the value. Strings, longs, ints and booleans are written as is,
+ * other values fall back to Java serialization. Entries written with ObjectOutputStream before
+ * this format still decode, they start with the serialization magic instead.
+ */
+final class MetadataCodec
+{
+    private static final int MAGIC = 0x494C; // "IL"
+    private static final int VERSION = 1;
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Key codes of the keys every ImageLoader entry carries, never renumber
+    private static final String[] KNOWN_KEYS = {
+            null,
+            SimpleDiskCache.METADATA_ETAG,
+            SimpleDiskCache.METADATA_LAST_MODIFIED,
+            SimpleDiskCache.METADATA_EXPIRES_AT,
+            SimpleDiskCache.METADATA_STALE_UNTIL
+    };
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_INT = 3;
+    private static final int TYPE_BOOLEAN = 4;
+    private static final int TYPE_SERIALIZED = 5;
+
+    private MetadataCodec()
+    {
+    }
+
+    /**
+     *
+     * @param metadata may be null
+     * @return
+     * @throws IOException
+     */
+    static byte[] encode(Map<String, ? extends Serializable> metadata) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+
+        if (metadata == null)
+        {
+            out.writeInt(0);
+            return bytes.toByteArray();
+        }
+
+        out.writeInt(metadata.size());
+        for (Map.Entry<String, ? extends Serializable> entry : metadata.entrySet())
+        {
+            int keyCode = getKeyCode(entry.getKey());
+            out.writeByte(keyCode);
+            if (keyCode == 0)
+                writeString(out, entry.getKey());
+
+            Serializable value = entry.getValue();
+            if (value == null)
+            {
+                out.writeByte(TYPE_NULL);
+            }
+            else if (value instanceof String)
+            {
+                out.writeByte(TYPE_STRING);
+                writeString(out, (String) value);
+            }
+            else if (value instanceof Long)
+            {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            }
+            else if (value instanceof Integer)
+            {
+                out.writeByte(TYPE_INT);
+                out.writeInt((Integer) value);
+            }
+            else if (value instanceof Boolean)
+            {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            }
+            else
+            {
+                out.writeByte(TYPE_SERIALIZED);
+                byte[] serialized = serialize(value);
+                out.writeInt(serialized.length);
+                out.write(serialized);
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     *
+     * @param data bytes of the metadata file, in this format or Java serialized
+     * @return
+     * @throws IOException if the bytes are in neither format
+     */
+    static Map<String, Serializable> decode(byte[] data) throws IOException
+    {
+        if (data.length >= 2 && ((data[0] & 0xff) << 8 | (data[1] & 0xff)) == JAVA_SERIALIZATION_MAGIC)
+            return decodeSerialized(data);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readUnsignedShort() != MAGIC)
+            throw new IOException("Unknown metadata format");
+
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unknown metadata version " + version);
+
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Corrupt metadata, " + count + " entries");
+
+        Map<String, Serializable> metadata = new HashMap<>(Math.max(4, count * 2));
+        for (int i = 0; i < count; i++)
+        {
+            int keyCode = in.readUnsignedByte();
+            String key;
+            if (keyCode == 0)
+                key = readString(in);
+            else if (keyCode < KNOWN_KEYS.length)
+                key = KNOWN_KEYS[keyCode];
+            else
+                throw new IOException("Unknown metadata key " + keyCode);
+
+            int type = in.readUnsignedByte();
+            switch (type)
+            {
+                case TYPE_NULL:
+                    metadata.put(key, null);
+                    break;
+                case TYPE_STRING:
+                    metadata.put(key, readString(in));
+                    break;
+                case TYPE_LONG:
+                    metadata.put(key, in.readLong());
+                    break;
+                case TYPE_INT:
+                    metadata.put(key, in.readInt());
+                    break;
+                case TYPE_BOOLEAN:
+                    metadata.put(key, in.readBoolean());
+                    break;
+                case TYPE_SERIALIZED:
+                    metadata.put(key, deserialize(readBytes(in)));
+                    break;
+                default:
+                    throw new IOException("Unknown metadata type " + type);
+            }
+        }
+        return metadata;
+    }
+
+    private static int getKeyCode(String key)
+    {
+        for (int i = 1; i < KNOWN_KEYS.length; i++)
+        {
+            if (KNOWN_KEYS[i].equals(key))
+                return i;
+        }
+        return 0;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        // Not writeUTF, it is limited to 64 KB
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return new String(readBytes(in), UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new IOException("Corrupt metadata, length " + length);
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] serialize(Serializable value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(value);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    private static Serializable deserialize(byte[] data) throws IOException
+    {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return (Serializable) ois.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * Entries written before this format, a whole map serialized with ObjectOutputStream
+     *
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Serializable> decodeSerialized(byte[] data) throws IOException
+    {
+        Serializable metadata = deserialize(data);
+        if (!(metadata instanceof Map))
+            throw new IOException("Unknown serialized metadata " + metadata.getClass());
+        return new HashMap<>((Map<String, Serializable>) metadata);
+    }
+}
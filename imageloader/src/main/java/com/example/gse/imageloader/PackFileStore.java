@@ -0,0 +1,1313 @@
+package com.example.gse.imageloader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * DiskStore appending entries to a few large pack files, for many small entries like grid
+ * thumbnails: no file per value to create and open, no journal line per read, a read is one
+ * positional read of an already open pack.
+ *
+ * An entry is one record, its values back to back after a header with the key, the value lengths
+ * and a CRC32 of the record. An in-memory index maps each key to its latest record, in access
+ * order for eviction, and is checkpointed to a file every few hundred commits and after each
+ * compaction. Opening loads the checkpoint, checking each record it names against its pack, and
+ * replays the records appended after it, cutting off a torn record at the end. Replaced and
+ * evicted records are dead space, a background thread copies the live records out of a pack that
+ * is mostly dead and deletes the pack. A removed or evicted entry is followed by a removal record
+ * of its key, which compaction copies along while an older pack may still hold a record of the
+ * key, so replaying does not bring it back.
+ */
+class PackFileStore implements DiskStore
+{
+    private static final String PACK_PREFIX = "pack-";
+    private static final String PACK_SUFFIX = ".pack";
+    private static final String CHECKPOINT_FILE = "index";
+    private static final String CHECKPOINT_TEMP_FILE = "index.tmp";
+
+    private static final int PACK_MAGIC = 0x494C504B; // "ILPK"
+    private static final int RECORD_MAGIC = 0x494C5245; // "ILRE"
+    private static final int REMOVAL_MAGIC = 0x494C524D; // "ILRM"
+    private static final int CHECKPOINT_MAGIC = 0x494C4958; // "ILIX"
+    private static final int VERSION = 1;
+    // Version 1 checkpoints did not list removal records, they are ignored and the packs replayed
+    private static final int CHECKPOINT_VERSION = 2;
+    private static final int PACK_HEADER_LENGTH = 16;
+    // Magic, CRC and key length, the key and the value lengths follow
+    private static final int RECORD_FIXED_LENGTH = 10;
+
+    // The active pack is sealed and a new one started once it is this big
+    static final long DEFAULT_PACK_SIZE = 4 * 1024 * 1024;
+    // Sealed packs with at least this share of dead bytes are compacted
+    private static final double COMPACT_DEAD_RATIO = 0.5;
+    private static final int CHECKPOINT_INTERVAL = 256; // Commits
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int appVersion;
+    private final int valueCount;
+    private final long maxSize;
+    private final long packSize;
+    private final ExecutorService maintenanceExecutor;
+    private final Object checkpointLock = new Object();
+    private volatile EvictionListener evictionListener;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Record> records = new LinkedHashMap<>(0, 0.75f, true);
+    // Removal records of keys older records of which may still be in the packs
+    private final Map<String, Record> removals = new HashMap<>();
+    private final TreeMap<Integer, Pack> packs = new TreeMap<>();
+    private final Set<String> editing = new HashSet<>();
+    private Pack activePack;
+    private int nextPackId;
+    private long size;
+    private int commitsSinceCheckpoint;
+    private boolean compactionQueued;
+
+    /**
+     * A pack file, appended to while it is the active pack. Read and written by seeking its
+     * RandomAccessFile while holding it: unlike a FileChannel it is not closed for every thread
+     * when one reading it is interrupted.
+     */
+    private static class Pack
+    {
+        final int id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        long length;
+        long deadBytes;
+        int readers; // Open snapshots and compactions reading it
+        boolean deleted; // Closed once the last reader is done
+
+        Pack(int id, File file, RandomAccessFile randomAccessFile)
+        {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+        }
+    }
+
+    /**
+     * Where the latest values of a key are. Compaction moves the record, guarded by the store
+     */
+    private static class Record
+    {
+        final String key;
+        final int length; // Header and values
+        final int[] valueLengths;
+        final long size; // Values only
+        Pack pack;
+        long offset;
+        long lastAccessTime;
+        boolean dead;
+        boolean removal; // Of the key, it has no values
+        int coveredPackId; // Of a removal, the newest pack that held a record of the key before it
+
+        Record(String key, int length, int[] valueLengths, Pack pack, long offset)
+        {
+            long size = 0;
+            for (int valueLength : valueLengths)
+                size += valueLength;
+
+            this.key = key;
+            this.length = length;
+            this.valueLengths = valueLengths;
+            this.size = size;
+            this.pack = pack;
+            this.offset = offset;
+        }
+
+        long getValueOffset(int valueIndex)
+        {
+            long valueOffset = offset + length - size;
+            for (int i = 0; i < valueIndex; i++)
+                valueOffset += valueLengths[i];
+            return valueOffset;
+        }
+    }
+
+    /**
+     *
+     * @param directory
+     * @param appVersion packs and checkpoints of another version are deleted
+     * @param valueCount
+     * @param maxSize byte budget of the values
+     * @param packSize size past which the active pack is sealed
+     * @throws IOException
+     */
+    PackFileStore(File directory, int appVersion, int valueCount, long maxSize, long packSize) throws IOException
+    {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.valueCount = valueCount;
+        this.maxSize = maxSize;
+        this.packSize = packSize;
+        this.maintenanceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PackFileStore Maintenance");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        open();
+    }
+
+    /**
+     * Load the checkpoint, then replay what was appended after it
+     *
+     * @throws IOException
+     */
+    private synchronized void open() throws IOException
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                String name = file.getName();
+                if (!name.startsWith(PACK_PREFIX) || !name.endsWith(PACK_SUFFIX))
+                    continue;
+
+                try {
+                    int id = Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+                    Pack pack = openPack(id, file);
+                    if (pack != null)
+                        packs.put(id, pack);
+                }
+                catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+
+        // Without a checkpoint every pack is replayed from its start
+        int replayPackId = 0;
+        long replayOffset = PACK_HEADER_LENGTH;
+        DataInputStream checkpoint = openCheckpoint();
+        if (checkpoint != null)
+        {
+            try {
+                replayPackId = checkpoint.readInt();
+                replayOffset = checkpoint.readLong();
+                readCheckpointRecords(checkpoint);
+            }
+            catch (IOException e) {
+                // Truncated or out of step with the packs, replaying everything rebuilds it
+                e.printStackTrace();
+                records.clear();
+                removals.clear();
+                size = 0;
+                replayPackId = 0;
+                replayOffset = PACK_HEADER_LENGTH;
+            }
+            finally {
+                checkpoint.close();
+            }
+        }
+
+        for (Pack pack : packs.tailMap(replayPackId, true).values())
+            replay(pack, pack.id == replayPackId ? Math.max(replayOffset, PACK_HEADER_LENGTH) : PACK_HEADER_LENGTH);
+
+        nextPackId = Math.max(packs.isEmpty() ? 0 : packs.lastKey() + 1, replayPackId + 1);
+        activePack = packs.isEmpty() ? null : packs.lastEntry().getValue();
+
+        for (Pack pack : packs.values())
+            pack.deadBytes = pack.length - PACK_HEADER_LENGTH;
+        for (Record record : records.values())
+            record.pack.deadBytes -= record.length;
+        for (Record removal : removals.values())
+            removal.pack.deadBytes -= removal.length;
+
+        trimToSize();
+        for (Pack pack : packs.values())
+            scheduleCompaction(pack);
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @param id
+     * @param file
+     * @return null if the pack was written by another version and was deleted
+     * @throws IOException
+     */
+    private Pack openPack(int id, File file) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        Pack pack = new Pack(id, file, randomAccessFile);
+        pack.length = randomAccessFile.length();
+
+        if (pack.length == 0)
+        {
+            ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_LENGTH);
+            header.putInt(PACK_MAGIC).putInt(VERSION).putInt(appVersion).putInt(valueCount).flip();
+            write(pack, header, 0);
+            pack.length = PACK_HEADER_LENGTH;
+            return pack;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_LENGTH);
+        if (pack.length < PACK_HEADER_LENGTH || !read(pack, header, 0)
+                || header.getInt(0) != PACK_MAGIC || header.getInt(4) != VERSION
+                || header.getInt(8) != appVersion || header.getInt(12) != valueCount)
+        {
+            randomAccessFile.close();
+            file.delete();
+            return null;
+        }
+        return pack;
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @return the checkpoint positioned after its header, null if missing or of another version
+     * @throws IOException
+     */
+    private DataInputStream openCheckpoint() throws IOException
+    {
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() == CHECKPOINT_MAGIC && in.readInt() == CHECKPOINT_VERSION
+                    && in.readInt() == appVersion && in.readInt() == valueCount)
+                return in;
+        }
+        catch (EOFException e) {
+            // Torn, ignored
+        }
+        in.close();
+        return null;
+    }
+
+    /**
+     * Guarded by this, records pointing past the end of their pack or into a deleted pack are
+     * left out, replaying the packs finds their newer copies. Every other record is read back and
+     * must be intact and of the key the checkpoint names.
+     *
+     * @param in
+     * @throws IOException also if a record is not in its pack as the checkpoint says
+     */
+    private void readCheckpointRecords(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            String key = in.readUTF();
+            int packId = in.readInt();
+            long offset = in.readLong();
+            int length = in.readInt();
+            long lastAccessTime = in.readLong();
+
+            Pack pack = packs.get(packId);
+            if (pack == null || offset + length > pack.length)
+                continue;
+
+            Record record = readCheckpointedRecord(pack, offset, key, length, false);
+            record.lastAccessTime = lastAccessTime;
+            index(record);
+        }
+
+        int removalCount = in.readInt();
+        for (int i = 0; i < removalCount; i++)
+        {
+            String key = in.readUTF();
+            int packId = in.readInt();
+            long offset = in.readLong();
+            int length = in.readInt();
+            int coveredPackId = in.readInt();
+
+            Pack pack = packs.get(packId);
+            if (pack == null || offset + length > pack.length)
+                continue;
+
+            Record removal = readCheckpointedRecord(pack, offset, key, length, true);
+            removal.coveredPackId = coveredPackId;
+            removals.put(key, removal);
+        }
+    }
+
+    /**
+     *
+     * @param pack
+     * @param offset
+     * @param key
+     * @param length
+     * @param removal
+     * @return the record at the offset
+     * @throws IOException if it is not the one the checkpoint names
+     */
+    private Record readCheckpointedRecord(Pack pack, long offset, String key, int length, boolean removal) throws IOException
+    {
+        Record record = readRecord(pack, offset);
+        if (record == null || record.removal != removal || record.length != length || !record.key.equals(key))
+            throw new IOException("Checkpoint does not match pack " + pack.id + " at " + offset);
+        return record;
+    }
+
+    /**
+     * Guarded by this, index the records of the pack from the offset on. A record that is cut
+     * short or fails its CRC ends the pack, it is truncated there.
+     *
+     * @param pack
+     * @param offset
+     * @throws IOException
+     */
+    private void replay(Pack pack, long offset) throws IOException
+    {
+        while (offset < pack.length)
+        {
+            Record record = readRecord(pack, offset);
+            if (record == null)
+            {
+                truncate(pack, offset);
+                pack.length = offset;
+                return;
+            }
+            if (record.removal)
+                unindex(record);
+            else
+                index(record);
+            offset += record.length;
+        }
+    }
+
+    /**
+     *
+     * @param pack
+     * @param offset
+     * @return null if there is no intact record at the offset
+     * @throws IOException
+     */
+    private Record readRecord(Pack pack, long offset) throws IOException
+    {
+        ByteBuffer fixed = ByteBuffer.allocate(RECORD_FIXED_LENGTH);
+        if (!read(pack, fixed, offset))
+            return null;
+        int magic = fixed.getInt(0);
+        if (magic == REMOVAL_MAGIC)
+            return readRemoval(pack, offset, fixed);
+        if (magic != RECORD_MAGIC)
+            return null;
+
+        int keyLength = fixed.getShort(8) & 0xffff;
+        int headerLength = getRecordHeaderLength(keyLength);
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        if (!read(pack, header, offset))
+            return null;
+
+        long length = headerLength;
+        int[] valueLengths = new int[valueCount];
+        for (int i = 0; i < valueCount; i++)
+        {
+            valueLengths[i] = header.getInt(RECORD_FIXED_LENGTH + keyLength + i * 4);
+            if (valueLengths[i] < 0)
+                return null;
+            length += valueLengths[i];
+        }
+        if (length > Integer.MAX_VALUE || offset + length > pack.length)
+            return null;
+
+        ByteBuffer bytes = ByteBuffer.allocate((int) length);
+        if (!read(pack, bytes, offset))
+            return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 8, (int) length - 8);
+        if ((int) crc.getValue() != fixed.getInt(4))
+            return null;
+
+        String key = new String(bytes.array(), RECORD_FIXED_LENGTH, keyLength, UTF_8);
+        return new Record(key, (int) length, valueLengths, pack, offset);
+    }
+
+    /**
+     *
+     * @param pack
+     * @param offset
+     * @param fixed the fixed part of the header, already read
+     * @return null if the removal record is cut short or fails its CRC
+     * @throws IOException
+     */
+    private Record readRemoval(Pack pack, long offset, ByteBuffer fixed) throws IOException
+    {
+        int length = RECORD_FIXED_LENGTH + (fixed.getShort(8) & 0xffff);
+        if (offset + length > pack.length)
+            return null;
+
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        if (!read(pack, bytes, offset))
+            return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 8, length - 8);
+        if ((int) crc.getValue() != fixed.getInt(4))
+            return null;
+
+        String key = new String(bytes.array(), RECORD_FIXED_LENGTH, length - RECORD_FIXED_LENGTH, UTF_8);
+        Record record = new Record(key, length, new int[0], pack, offset);
+        record.removal = true;
+        return record;
+    }
+
+    private int getRecordHeaderLength(int keyLength)
+    {
+        return RECORD_FIXED_LENGTH + keyLength + valueCount * 4;
+    }
+
+    /**
+     * Guarded by this, while opening: the record replaces any earlier one of its key
+     *
+     * @param record
+     */
+    private void index(Record record)
+    {
+        removals.remove(record.key);
+        Record previous = records.put(record.key, record);
+        if (previous != null)
+            size -= previous.size;
+        size += record.size;
+    }
+
+    /**
+     * Guarded by this, while opening: a removal record drops the key. It is kept if a record of
+     * the key came before it, or it is a copy of a removal record kept before.
+     *
+     * @param removal
+     */
+    private void unindex(Record removal)
+    {
+        Record previous = records.remove(removal.key);
+        Record previousRemoval = removals.remove(removal.key);
+        if (previous != null)
+        {
+            size -= previous.size;
+            removal.coveredPackId = previous.pack.id;
+            removals.put(removal.key, removal);
+        }
+        else if (previousRemoval != null)
+        {
+            removal.coveredPackId = previousRemoval.coveredPackId;
+            removals.put(removal.key, removal);
+        }
+    }
+
+    @Override
+    public synchronized Snapshot get(String key) throws IOException
+    {
+        Record record = records.get(key);
+        if (record == null)
+            return null;
+
+        record.lastAccessTime = System.currentTimeMillis();
+        record.pack.readers++;
+        return new PackSnapshot(record);
+    }
+
+    @Override
+    public synchronized Editor edit(String key) throws IOException
+    {
+        if (!editing.add(key))
+            return null;
+        return new PackEditor(key);
+    }
+
+    @Override
+    public synchronized boolean contains(String key)
+    {
+        return records.containsKey(key);
+    }
+
+    /**
+     * Appends a removal record, the entry's record is dead space
+     */
+    @Override
+    public synchronized boolean remove(String key) throws IOException
+    {
+        if (editing.contains(key))
+            return false;
+        Record record = records.get(key);
+        if (record == null)
+            return false;
+
+        appendRemoval(record);
+        records.remove(key);
+        markDead(record);
+        return true;
+    }
+
+    /**
+     * Guarded by this, the record is removed or evicted. The removal record counts as live data
+     * until compaction finds no pack left that could hold an older record of the key.
+     *
+     * @param record latest record of the key
+     * @throws IOException
+     */
+    private void appendRemoval(Record record) throws IOException
+    {
+        byte[] keyBytes = record.key.getBytes(UTF_8);
+        ByteBuffer bytes = ByteBuffer.allocate(RECORD_FIXED_LENGTH + keyBytes.length);
+        bytes.putInt(REMOVAL_MAGIC).putInt(0).putShort((short) keyBytes.length).put(keyBytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 8, bytes.capacity() - 8);
+        bytes.putInt(4, (int) crc.getValue());
+
+        Record removal = append(record.key, bytes.array(), new int[0]);
+        removal.removal = true;
+        removal.coveredPackId = record.pack.id;
+        Record previousRemoval = removals.put(record.key, removal);
+        if (previousRemoval != null)
+            markDead(previousRemoval);
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener evictionListener)
+    {
+        this.evictionListener = evictionListener;
+    }
+
+    @Override
+    public synchronized long getSize(String key)
+    {
+        Record record = records.get(key);
+        return record != null ? record.size : -1;
+    }
+
+    @Override
+    public synchronized boolean hasValue(String key, int valueIndex)
+    {
+        Record record = records.get(key);
+        return record != null && record.valueLengths[valueIndex] > 0;
+    }
+
+    @Override
+    public synchronized long getLastAccessTime(String key)
+    {
+        Record record = records.get(key);
+        return record != null ? record.lastAccessTime : -1;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException
+    {
+        for (Record record : records.values())
+            record.dead = true;
+        for (Record removal : removals.values())
+            removal.dead = true;
+        records.clear();
+        removals.clear();
+        size = 0;
+
+        for (Pack pack : new ArrayList<>(packs.values()))
+            deletePack(pack);
+        activePack = null;
+        commitsSinceCheckpoint = 0;
+
+        synchronized (checkpointLock) {
+            new File(directory, CHECKPOINT_FILE).delete();
+        }
+    }
+
+    /**
+     * Waits for a running compaction, checkpoints and closes the packs
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        maintenanceExecutor.shutdown();
+        try {
+            maintenanceExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        writeCheckpoint();
+        synchronized (this) {
+            for (Pack pack : packs.values())
+                pack.randomAccessFile.close();
+            packs.clear();
+            records.clear();
+            removals.clear();
+            activePack = null;
+        }
+    }
+
+    /**
+     * Append the edited entry as a new record, values it did not write are copied from the
+     * previous record of the key
+     *
+     * @param editor
+     * @return the keys evicted to make room for it
+     * @throws IOException
+     */
+    private synchronized List<String> commit(PackEditor editor) throws IOException
+    {
+        editing.remove(editor.key);
+
+        Record previous = records.get(editor.key);
+        byte[][] values = new byte[valueCount][];
+        int[] valueLengths = new int[valueCount];
+        for (int i = 0; i < valueCount; i++)
+        {
+            if (editor.values[i] != null)
+                values[i] = editor.values[i].toByteArray();
+            else if (previous != null)
+                values[i] = readValue(previous, i);
+            else
+                throw new IllegalStateException("Newly created entry did not write value " + i);
+            valueLengths[i] = values[i].length;
+        }
+
+        Record record = append(editor.key, encodeRecord(editor.key, values), valueLengths);
+        record.lastAccessTime = System.currentTimeMillis();
+        records.put(editor.key, record);
+        if (previous != null)
+            markDead(previous);
+        Record removal = removals.remove(editor.key);
+        if (removal != null)
+            markDead(removal);
+        size += record.size;
+        List<String> evictedKeys = trimToSize();
+
+        if (++commitsSinceCheckpoint >= CHECKPOINT_INTERVAL)
+        {
+            commitsSinceCheckpoint = 0;
+            scheduleCheckpoint();
+        }
+        return evictedKeys;
+    }
+
+    private byte[] encodeRecord(String key, byte[][] values)
+    {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        long length = getRecordHeaderLength(keyBytes.length);
+        for (byte[] value : values)
+            length += value.length;
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Entry " + key + " is too large.");
+
+        ByteBuffer record = ByteBuffer.allocate((int) length);
+        record.putInt(RECORD_MAGIC).putInt(0).putShort((short) keyBytes.length).put(keyBytes);
+        for (byte[] value : values)
+            record.putInt(value.length);
+        for (byte[] value : values)
+            record.put(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, (int) length - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Guarded by this, write a record at the end of the active pack
+     *
+     * @param key
+     * @param bytes the encoded record
+     * @param valueLengths
+     * @return
+     * @throws IOException
+     */
+    private Record append(String key, byte[] bytes, int[] valueLengths) throws IOException
+    {
+        Pack pack = getActivePack();
+        long offset = pack.length;
+        write(pack, ByteBuffer.wrap(bytes), offset);
+        pack.length += bytes.length;
+        return new Record(key, bytes.length, valueLengths, pack, offset);
+    }
+
+    /**
+     * Guarded by this, seals the active pack once it is full
+     *
+     * @return
+     * @throws IOException
+     */
+    private Pack getActivePack() throws IOException
+    {
+        if (activePack != null && activePack.length < packSize)
+            return activePack;
+
+        Pack sealed = activePack;
+        int id = nextPackId++;
+        activePack = openPack(id, new File(directory, PACK_PREFIX + id + PACK_SUFFIX));
+        packs.put(id, activePack);
+
+        if (sealed != null)
+            scheduleCompaction(sealed);
+        return activePack;
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @param record
+     * @param valueIndex
+     * @return
+     * @throws IOException
+     */
+    private byte[] readValue(Record record, int valueIndex) throws IOException
+    {
+        ByteBuffer value = ByteBuffer.allocate(record.valueLengths[valueIndex]);
+        if (!read(record.pack, value, record.getValueOffset(valueIndex)))
+            throw new EOFException("Pack " + record.pack.id + " ends inside entry " + record.key);
+        return value.array();
+    }
+
+    /**
+     * Guarded by this, the record was replaced or evicted, or the removal record is not needed
+     *
+     * @param record
+     */
+    private void markDead(Record record)
+    {
+        record.dead = true;
+        size -= record.size;
+        record.pack.deadBytes += record.length;
+        scheduleCompaction(record.pack);
+    }
+
+    /**
+     * Guarded by this, evict the least recently used entries
+     *
+     * @return the evicted keys
+     */
+    private List<String> trimToSize()
+    {
+        List<String> evictedKeys = new ArrayList<>();
+        boolean checkpointRequired = false;
+        Iterator<Map.Entry<String, Record>> iterator = records.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext())
+        {
+            Record record = iterator.next().getValue();
+            try {
+                appendRemoval(record);
+            }
+            catch (IOException e) {
+                // The checkpoint leaves it out, only a full replay brings it back
+                e.printStackTrace();
+                checkpointRequired = true;
+            }
+            iterator.remove();
+            markDead(record);
+            evictedKeys.add(record.key);
+        }
+
+        if (checkpointRequired)
+            scheduleCheckpoint();
+        return evictedKeys;
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @param removal
+     * @param compacted the pack being compacted, deleted along with the records in it
+     * @return true if a pack other than the compacted one may hold a record of the key older than
+     * the removal record
+     */
+    private boolean isRemovalNeeded(Record removal, Pack compacted)
+    {
+        for (Pack pack : packs.headMap(removal.coveredPackId, true).values())
+        {
+            if (pack != compacted)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @param pack
+     * @return true if the pack is sealed and mostly dead
+     */
+    private boolean isCompactable(Pack pack)
+    {
+        return pack != activePack && !pack.deleted
+                && pack.deadBytes >= (pack.length - PACK_HEADER_LENGTH) * COMPACT_DEAD_RATIO;
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @param pack
+     */
+    private void scheduleCompaction(Pack pack)
+    {
+        if (compactionQueued || !isCompactable(pack) || maintenanceExecutor.isShutdown())
+            return;
+
+        compactionQueued = true;
+        maintenanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Guarded by this
+     */
+    private void scheduleCheckpoint()
+    {
+        if (maintenanceExecutor.isShutdown())
+            return;
+
+        maintenanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeCheckpoint();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Maintenance thread, move the live records of compactable packs to the active pack and delete
+     * them. Records are read without the lock, the pack is held open meanwhile.
+     */
+    private void compact()
+    {
+        try {
+            while (true)
+            {
+                Pack pack = null;
+                List<Record> liveRecords = new ArrayList<>();
+                synchronized (this) {
+                    for (Pack candidate : packs.values())
+                    {
+                        if (isCompactable(candidate))
+                        {
+                            pack = candidate;
+                            break;
+                        }
+                    }
+                    if (pack == null)
+                    {
+                        compactionQueued = false;
+                        return;
+                    }
+
+                    for (Record record : records.values())
+                    {
+                        if (record.pack == pack)
+                            liveRecords.add(record);
+                    }
+                    for (Record removal : removals.values())
+                    {
+                        if (removal.pack == pack)
+                            liveRecords.add(removal);
+                    }
+                    pack.readers++;
+                }
+
+                try {
+                    for (Record record : liveRecords)
+                    {
+                        ByteBuffer bytes = ByteBuffer.allocate(record.length);
+                        if (!read(pack, bytes, record.offset))
+                        {
+                            // Cut short, it goes with the pack
+                            synchronized (this) {
+                                if (!record.dead && record.pack == pack)
+                                {
+                                    (record.removal ? removals : records).remove(record.key);
+                                    markDead(record);
+                                }
+                            }
+                            continue;
+                        }
+
+                        synchronized (this) {
+                            // Replaced or evicted since, or the store was cleared
+                            if (record.dead || record.pack != pack)
+                                continue;
+
+                            // Nothing older left for it to hide
+                            if (record.removal && !isRemovalNeeded(record, pack))
+                            {
+                                removals.remove(record.key);
+                                continue;
+                            }
+
+                            Pack target = getActivePack();
+                            long offset = target.length;
+                            write(target, bytes, offset);
+                            target.length += record.length;
+                            record.pack = target;
+                            record.offset = offset;
+                        }
+                    }
+                }
+                finally {
+                    synchronized (this) {
+                        release(pack);
+                    }
+                }
+
+                synchronized (this) {
+                    deletePack(pack);
+                }
+                writeCheckpoint();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                compactionQueued = false;
+            }
+        }
+    }
+
+    /**
+     * Guarded by this, the file is unlinked now and closed after its last reader
+     *
+     * @param pack
+     */
+    private void deletePack(Pack pack)
+    {
+        if (pack.deleted)
+            return;
+
+        packs.remove(pack.id);
+        pack.deleted = true;
+        pack.file.delete();
+        if (pack == activePack)
+            activePack = null;
+        if (pack.readers == 0)
+            closeQuietly(pack);
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @param pack
+     */
+    private void release(Pack pack)
+    {
+        if (--pack.readers == 0 && pack.deleted)
+            closeQuietly(pack);
+    }
+
+    private static void closeQuietly(Pack pack)
+    {
+        try {
+            pack.randomAccessFile.close();
+        }
+        catch (IOException e) {
+            // Nothing left to read from it
+        }
+    }
+
+    /**
+     * Write the index to a temporary file and rename it over the checkpoint. Records appended
+     * after the position it notes are replayed on open.
+     *
+     * @throws IOException
+     */
+    private void writeCheckpoint() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (this) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(appVersion);
+            out.writeInt(valueCount);
+            out.writeInt(activePack != null ? activePack.id : nextPackId);
+            out.writeLong(activePack != null ? activePack.length : PACK_HEADER_LENGTH);
+
+            // Least recently used first, loading them in order restores the access order
+            out.writeInt(records.size());
+            for (Record record : records.values())
+            {
+                out.writeUTF(record.key);
+                out.writeInt(record.pack.id);
+                out.writeLong(record.offset);
+                out.writeInt(record.length);
+                out.writeLong(record.lastAccessTime);
+            }
+
+            out.writeInt(removals.size());
+            for (Record removal : removals.values())
+            {
+                out.writeUTF(removal.key);
+                out.writeInt(removal.pack.id);
+                out.writeLong(removal.offset);
+                out.writeInt(removal.length);
+                out.writeInt(removal.coveredPackId);
+            }
+        }
+        out.flush();
+
+        synchronized (checkpointLock) {
+            File temp = new File(directory, CHECKPOINT_TEMP_FILE);
+            FileOutputStream fileStream = new FileOutputStream(temp);
+            try {
+                bytes.writeTo(fileStream);
+                fileStream.getFD().sync();
+            }
+            finally {
+                fileStream.close();
+            }
+            if (!temp.renameTo(new File(directory, CHECKPOINT_FILE)))
+                throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    /**
+     *
+     * @param pack
+     * @param buffer a heap buffer, filled from its position to its limit
+     * @param position
+     * @return false if the pack ends first
+     * @throws IOException
+     */
+    private static boolean read(Pack pack, ByteBuffer buffer, long position) throws IOException
+    {
+        int count = read(pack.randomAccessFile, position, buffer.array(),
+                buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (count < buffer.remaining())
+            return false;
+        buffer.position(buffer.limit());
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     *
+     * @param file
+     * @param position
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return the count read, less than the length only if the file ends first
+     * @throws IOException
+     */
+    private static int read(RandomAccessFile file, long position, byte[] bytes, int offset, int length) throws IOException
+    {
+        synchronized (file) {
+            file.seek(position);
+            int total = 0;
+            while (total < length)
+            {
+                int count = file.read(bytes, offset + total, length - total);
+                if (count < 0)
+                    break;
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    /**
+     *
+     * @param pack
+     * @param buffer a heap buffer, written from its position to its limit
+     * @param position
+     * @throws IOException
+     */
+    private static void write(Pack pack, ByteBuffer buffer, long position) throws IOException
+    {
+        RandomAccessFile file = pack.randomAccessFile;
+        synchronized (file) {
+            file.seek(position);
+            file.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        buffer.position(buffer.limit());
+    }
+
+    private static void truncate(Pack pack, long length) throws IOException
+    {
+        RandomAccessFile file = pack.randomAccessFile;
+        synchronized (file) {
+            file.setLength(length);
+        }
+    }
+
+    /**
+     * Holds its pack open until closed, a compaction moving the record meanwhile does not affect it
+     */
+    private class PackSnapshot implements Snapshot
+    {
+        private final Pack pack;
+        private final long[] valueOffsets;
+        private final int[] valueLengths;
+        private boolean closed;
+
+        /**
+         * Guarded by the store
+         *
+         * @param record
+         */
+        PackSnapshot(Record record)
+        {
+            this.pack = record.pack;
+            this.valueLengths = record.valueLengths;
+            this.valueOffsets = new long[valueLengths.length];
+            for (int i = 0; i < valueLengths.length; i++)
+                valueOffsets[i] = record.getValueOffset(i);
+        }
+
+        @Override
+        public InputStream getInputStream(int valueIndex) {
+            return new RegionInputStream(pack.randomAccessFile, valueOffsets[valueIndex], valueLengths[valueIndex]);
+        }
+
+        @Override
+        public long getLength(int valueIndex) {
+            return valueLengths[valueIndex];
+        }
+
+        @Override
+        public void close() {
+            synchronized (PackFileStore.this) {
+                if (closed)
+                    return;
+                closed = true;
+                release(pack);
+            }
+        }
+    }
+
+    /**
+     * Values are buffered in memory and appended as one record on commit
+     */
+    private class PackEditor implements Editor
+    {
+        private final String key;
+        private final ByteArrayOutputStream[] values = new ByteArrayOutputStream[valueCount];
+        private boolean done;
+
+        PackEditor(String key)
+        {
+            this.key = key;
+        }
+
+        @Override
+        public OutputStream newOutputStream(int valueIndex) throws IOException {
+            if (done)
+                throw new IllegalStateException("Edit of " + key + " already ended.");
+            values[valueIndex] = new ByteArrayOutputStream();
+            return values[valueIndex];
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (done)
+                throw new IllegalStateException("Edit of " + key + " already ended.");
+            done = true;
+            List<String> evictedKeys = PackFileStore.this.commit(this);
+
+            EvictionListener evictionListener = PackFileStore.this.evictionListener;
+            if (evictionListener != null)
+            {
+                for (String evictedKey : evictedKeys)
+                    evictionListener.onEvicted(evictedKey);
+            }
+        }
+
+        @Override
+        public void abort() throws IOException {
+            if (done)
+                return;
+            done = true;
+            synchronized (PackFileStore.this) {
+                editing.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Positional reads of a region of a pack, independent of any other reader of the file
+     */
+    private static class RegionInputStream extends InputStream
+    {
+        private final RandomAccessFile file;
+        private final long end;
+        private long position;
+
+        RegionInputStream(RandomAccessFile file, long position, long length)
+        {
+            this.file = file;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            if (position >= end)
+                return -1;
+
+            int count = PackFileStore.read(file, position, buffer, offset, (int) Math.min(length, end - position));
+            if (count == 0)
+                return -1;
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            long skipped = Math.max(0, Math.min(count, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.gse.imageloader;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scroll listener prefetching the images of the next positions in the scroll direction, so rows
+ * scrolled into view find their image in the cache instead of waiting on the network.
+ *
+ * Works with LinearLayoutManager and its subclasses like GridLayoutManager.
+ */
+public class RecyclerViewPreloader extends RecyclerView.OnScrollListener
+{
+    /**
+     * Url of the image shown at an adapter position
+     */
+    public interface UrlProvider
+    {
+        /**
+         *
+         * @param position
+         * @return the url or null if the position has no image
+         */
+        String getImageUrl(int position);
+    }
+
+    private final ImageLoader imageLoader;
+    private final UrlProvider urlProvider;
+    private final int preloadCount;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final boolean warmMemoryCache;
+
+    // Positions already prefetched, to not queue them again on every scroll event
+    private int preloadedStart = -1;
+    private int preloadedEnd = -1;
+
+    /**
+     * Prefetch into the disk cache only.
+     *
+     * @param imageLoader
+     * @param urlProvider
+     * @param preloadCount number of positions to prefetch ahead of the visible ones
+     */
+    public RecyclerViewPreloader(ImageLoader imageLoader, UrlProvider urlProvider, int preloadCount)
+    {
+        this(imageLoader, urlProvider, preloadCount, 1, 1, false);
+    }
+
+    /**
+     *
+     * @param imageLoader
+     * @param urlProvider
+     * @param preloadCount number of positions to prefetch ahead of the visible ones
+     * @param targetWidth width of the item image views
+     * @param targetHeight height of the item image views
+     * @param warmMemoryCache also decode the prefetched images into the memory cache for that size
+     */
+    public RecyclerViewPreloader(ImageLoader imageLoader, UrlProvider urlProvider, int preloadCount,
+                                 int targetWidth, int targetHeight, boolean warmMemoryCache)
+    {
+        if (imageLoader == null || urlProvider == null)
+            throw new IllegalArgumentException("Image loader and url provider should not be null.");
+
+        this.imageLoader = imageLoader;
+        this.urlProvider = urlProvider;
+        this.preloadCount = preloadCount;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.warmMemoryCache = warmMemoryCache;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy)
+    {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager) || recyclerView.getAdapter() == null)
+            return;
+
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int delta = layoutManager.getOrientation() == LinearLayoutManager.HORIZONTAL ? dx : dy;
+        if (delta == 0)
+            return;
+
+        int firstVisible = layoutManager.findFirstVisibleItemPosition();
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        if (firstVisible < 0 || lastVisible < 0)
+            return;
+
+        int itemCount = recyclerView.getAdapter().getItemCount();
+        int start;
+        int end;
+        if (delta > 0)
+        {
+            start = lastVisible + 1;
+            end = Math.min(itemCount - 1, lastVisible + preloadCount);
+        }
+        else
+        {
+            start = Math.max(0, firstVisible - preloadCount);
+            end = firstVisible - 1;
+        }
+
+        preload(start, end);
+    }
+
+    /**
+     *
+     * @param start first position, inclusive
+     * @param end last position, inclusive
+     */
+    private void preload(int start, int end)
+    {
+        List<String> imageUrls = new ArrayList<>();
+        for (int position = start; position <= end; position++)
+        {
+            if (position >= preloadedStart && position <= preloadedEnd)
+                continue;
+
+            String imageUrl = urlProvider.getImageUrl(position);
+            if (imageUrl != null)
+                imageUrls.add(imageUrl);
+        }
+
+        if (start <= end)
+        {
+            preloadedStart = start;
+            preloadedEnd = end;
+        }
+
+        if (!imageUrls.isEmpty())
+            imageLoader.prefetch(imageUrls, targetWidth, targetHeight, warmMemoryCache);
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.gse.imageloader;
+
+/**
+ * inSampleSize of the sampled decodes of ImageLoader and SimpleDiskCache.
+ */
+final class SampleSize
+{
+    private SampleSize()
+    {
+    }
+
+    /**
+     * Largest power of two sampling that keeps the image at least the requested size
+     *
+     * @param width
+     * @param height
+     * @param reqWidth 0 for the full size
+     * @param reqHeight 0 for the full size
+     * @return
+     */
+    static int calculate(int width, int height, int reqWidth, int reqHeight)
+    {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0)
+            return inSampleSize; // Full size
+
+        if (height > reqHeight || width > reqWidth) {
+
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+
+            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
+            // height and width larger than the requested height and width.
+            while ((halfHeight / inSampleSize) >= reqHeight && (halfWidth / inSampleSize) >= reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+}
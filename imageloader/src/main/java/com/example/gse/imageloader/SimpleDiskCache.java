@@ -1,23 +1,24 @@
 package com.example.gse.imageloader;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.io.IOUtils;
 
@@ -32,19 +33,72 @@ import com.jakewharton.disklrucache.DiskLruCache;
  */
 public class SimpleDiskCache
 {
+	// Metadata keys used by ImageLoader for HTTP revalidation
+	public static final String METADATA_ETAG = "etag";
+	public static final String METADATA_LAST_MODIFIED = "last-modified";
+	public static final String METADATA_EXPIRES_AT = "expires-at";
+	public static final String METADATA_STALE_UNTIL = "stale-until";
+
 	private static final int VALUE_IDX = 0;
 	private static final int METADATA_IDX = 1;
+	// Changing it makes the store start over with an empty cache
+	private static final int VALUE_COUNT = 2;
 	private static final List<File> usedDirs = new ArrayList<File>();
+	private static final int WRITE_LOCK_STRIPES = 32;
+	// Finer than the lock stripes, a rewrite of another key seldom drops a variant
+	private static final int WRITE_GENERATION_SLOTS = 256;
+	private static final int VARIANT_QUALITY = 85;
+	// Values from this size on are copied out of a mapping rather than read, see DiskCacheReadBenchmark
+	private static final long MAP_THRESHOLD = 512 * 1024;
+
+	private final DiskStore store;
+	private final DiskCacheKeys keys = new DiskCacheKeys();
+	private BitmapPool bitmapPool;
+	private BitmapDecoder bitmapDecoder = BitmapDecoder.BITMAP_FACTORY;
+	// Writers of keys in the same stripe wait for each other, reads take no lock
+	private final Semaphore[] writeLocks = new Semaphore[WRITE_LOCK_STRIPES];
+	// Bumped once a rewrite of an original of the slot is committed, see putVariant
+	private final AtomicLongArray writeGenerations = new AtomicLongArray(WRITE_GENERATION_SLOTS);
 
-	private DiskLruCache diskLruCache;
-	private int mAppVersion;
+	/**
+	 * How entries are laid out on disk, the API is the same for both.
+	 */
+	public enum Engine {
+		/**
+		 * A file per value and a journal line per operation, through DiskLruCache.
+		 */
+		DISK_LRU_CACHE,
+		/**
+		 * Entries appended to a few large pack files with an in-memory index. Fewer files and
+		 * cheaper reads for many small entries such as thumbnails. Values are not files of their
+		 * own, InputStreamEntry can not hand out a file descriptor or channel for them.
+		 */
+		PACK_FILE
+	}
 
-	private SimpleDiskCache(File dir, int appVersion, long maxSize) throws IOException {
-		mAppVersion = appVersion;
-		diskLruCache = DiskLruCache.open(dir, appVersion, 2, maxSize);
+	private SimpleDiskCache(File dir, int appVersion, long maxSize, Engine engine) throws IOException {
+		if (engine == Engine.PACK_FILE) {
+			store = new PackFileStore(dir, appVersion, VALUE_COUNT, maxSize, PackFileStore.DEFAULT_PACK_SIZE);
+		} else {
+			store = new DiskLruStore(dir, appVersion, VALUE_COUNT, maxSize);
+		}
+		for (int i = 0; i < writeLocks.length; i++) {
+			writeLocks[i] = new Semaphore(1);
+		}
+		store.setEvictionListener(new DiskStore.EvictionListener() {
+			@Override
+			public void onEvicted(String key) {
+				onOriginalEvicted(key);
+			}
+		});
 	}
 
-	public static synchronized SimpleDiskCache open(File dir, int appVersion, long maxSize)
+	public static SimpleDiskCache open(File dir, int appVersion, long maxSize)
+			throws IOException {
+		return open(dir, appVersion, maxSize, Engine.DISK_LRU_CACHE);
+	}
+
+	public static synchronized SimpleDiskCache open(File dir, int appVersion, long maxSize, Engine engine)
 			throws IOException {
 		if (usedDirs.contains(dir)) {
 			throw new IllegalStateException("Cache dir " + dir.getAbsolutePath() + " was used before.");
@@ -52,7 +106,7 @@ public class SimpleDiskCache
 
 		usedDirs.add(dir);
 
-		return new SimpleDiskCache(dir, appVersion, maxSize);
+		return new SimpleDiskCache(dir, appVersion, maxSize, engine);
 	}
 
 	/**
@@ -60,80 +114,402 @@ public class SimpleDiskCache
 	 * @throws IOException
 	 */
 	public void clear() throws IOException {
-		File dir = diskLruCache.getDirectory();
-		long maxSize = diskLruCache.getMaxSize();
-		diskLruCache.delete();
-		diskLruCache = DiskLruCache.open(dir, mAppVersion, 2, maxSize);
+		store.clear();
 	}
 
+	/**
+	 * User should be sure there are no outstanding operations.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * @return the underlying DiskLruCache, null with the PACK_FILE engine
+	 */
 	public DiskLruCache getCache() {
-		return diskLruCache;
+		return store instanceof DiskLruStore ? ((DiskLruStore) store).getCache() : null;
+	}
+
+	/**
+	 * Pool to take inBitmap from when decoding bitmaps, may be null.
+	 */
+	public void setBitmapPool(BitmapPool bitmapPool) {
+		this.bitmapPool = bitmapPool;
+	}
+
+	/**
+	 * Decoder of getBitmap, BitmapFactory unless a benchmark runs it on the JVM.
+	 */
+	void setBitmapDecoder(BitmapDecoder bitmapDecoder) {
+		this.bitmapDecoder = bitmapDecoder;
 	}
 
 	public InputStreamEntry getInputStream(String key) throws IOException {
-		DiskLruCache.Snapshot snapshot = diskLruCache.get(toInternalKey(key));
+		DiskStore.Snapshot snapshot = store.get(toInternalKey(key));
 		if (snapshot == null) return null;
-		return new InputStreamEntry(snapshot, readMetadata(snapshot));
+		return new InputStreamEntry(snapshot);
+	}
+
+	/**
+	 * Downscaled copies of an image, each an entry of its own under the original's key and a
+	 * suffix, so entries written before variants existed are read as they are. A variant is only
+	 * served while its original is cached and is removed when the original is rewritten or evicted.
+	 * A variant is scaled so its shortest edge is its size, it can serve any request both of whose
+	 * sides fit in that size.
+	 */
+	public enum Variant {
+		// Internal keys are hex digits, a suffix with an underscore never names an original
+		THUMBNAIL("_thumb", 256),
+		MEDIUM("_medium", 768),
+		ORIGINAL("", Integer.MAX_VALUE);
+
+		private final String keySuffix;
+		private final int size;
+
+		Variant(String keySuffix, int size) {
+			this.keySuffix = keySuffix;
+			this.size = size;
+		}
+
+		private String toVariantKey(String internalKey) {
+			return internalKey + keySuffix;
+		}
+
+		/**
+		 * @return the length of the shortest edge, Integer.MAX_VALUE for the original
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the smallest variant that can serve the requested size
+		 */
+		public static Variant forSize(int reqWidth, int reqHeight) {
+			int reqSize = Math.max(reqWidth, reqHeight);
+			for (Variant variant : values()) {
+				if (variant.size >= reqSize) return variant;
+			}
+			return ORIGINAL;
+		}
 	}
 
 	public BitmapEntry getBitmap(String key) throws IOException {
-		DiskLruCache.Snapshot snapshot = diskLruCache.get(toInternalKey(key));
-		if (snapshot == null) return null;
+		return getBitmap(key, 0, 0, (Bitmap.Config) null, null);
+	}
+
+	/**
+	 * Answered from the in-memory index, a variant counts only while its original is cached.
+	 */
+	public boolean hasVariant(String key, Variant variant) {
+		String internalKey = toInternalKey(key);
+		return store.contains(internalKey) && store.contains(variant.toVariantKey(internalKey));
+	}
+
+	/**
+	 * Decode a variant, see getBitmap(String, int, int, Bitmap.Config, Bitmap).
+	 * @return null if the entry or the variant is not cached
+	 */
+	public BitmapEntry getBitmap(String key, Variant variant, int reqWidth, int reqHeight,
+			Bitmap.Config config, Bitmap inBitmap) throws IOException {
+		return getBitmap(toInternalKey(key), variant, reqWidth, reqHeight, config, null, inBitmap);
+	}
+
+	/**
+	 * Decode a variant with the config the policy picks for it.
+	 * @return null if the entry or the variant is not cached
+	 */
+	public BitmapEntry getBitmap(String key, Variant variant, int reqWidth, int reqHeight,
+			DecodeConfigPolicy configPolicy, Bitmap inBitmap) throws IOException {
+		return getBitmap(toInternalKey(key), variant, reqWidth, reqHeight, null, configPolicy, inBitmap);
+	}
+
+	/**
+	 * Token of the current value of the entry, read it before reading the original a variant is
+	 * made from. Shared with a few other keys, a rewrite of any of them changes it too.
+	 */
+	public long getWriteGeneration(String key) {
+		return writeGenerations.get(getGenerationSlot(toInternalKey(key)));
+	}
 
+	/**
+	 * Store a variant of a cached original, replacing the previous one. Rewriting the original
+	 * drops its variants.
+	 * @param bitmap already scaled to the variant size
+	 * @param writeGeneration of the original, as getWriteGeneration returned it before the original
+	 *                        was read
+	 * @return false if the original is not in the cache any more or was rewritten since
+	 */
+	public boolean putVariant(String key, Variant variant, Bitmap bitmap, long writeGeneration) throws IOException {
+		if (variant == Variant.ORIGINAL) throw new IllegalArgumentException("The original is written with put or openStream.");
+
+		// Under the original's lock, rewriting the original waits for it and removes the variant
+		String internalKey = toInternalKey(key);
+		Semaphore writeLock = acquireWriteLock(internalKey);
 		try {
-			Bitmap bitmap = BitmapFactory.decodeStream(snapshot.getInputStream(VALUE_IDX));
-			return new BitmapEntry(bitmap, readMetadata(snapshot));
+			if (!store.contains(internalKey)) return false;
+			if (writeGenerations.get(getGenerationSlot(internalKey)) != writeGeneration) return false;
+
+			DiskStore.Editor editor = store.edit(variant.toVariantKey(internalKey));
+			if (editor == null) throw new IOException("Variant of " + key + " is already being edited.");
+
+			OutputStream os = null;
+			try {
+				editor.newOutputStream(METADATA_IDX).close();
+				os = new BufferedOutputStream(editor.newOutputStream(VALUE_IDX));
+				Bitmap.CompressFormat format = bitmap.hasAlpha()
+						? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+				if (!bitmap.compress(format, VARIANT_QUALITY, os)) throw new IOException("Could not compress " + key);
+				os.close();
+				os = null;
+
+				editor.commit();
+			} catch (IOException e) {
+				IOUtils.closeQuietly(os);
+				editor.abort();
+				throw e;
+			}
+
+			// Evicted while the variant was written, its removal found the variant being edited
+			if (!store.contains(internalKey)) {
+				store.remove(variant.toVariantKey(internalKey));
+				return false;
+			}
+			return true;
+		} finally {
+			writeLock.release();
+		}
+	}
+
+	/**
+	 * Decode the entry sampled down to at least the requested size, with a bounds pass and the
+	 * sampled decode both reading the file descriptor of the same snapshot, or the bytes of the
+	 * value when it is not a file of its own.
+	 *
+	 * @param reqWidth 0 for the full size
+	 * @param reqHeight 0 for the full size
+	 * @param config null for the decoder default
+	 * @param inBitmap bitmap to decode into, null to take one from the bitmap pool if any. If it
+	 *                 can not hold the image a new bitmap is decoded, it is left to the caller.
+	 */
+	public BitmapEntry getBitmap(String key, int reqWidth, int reqHeight, Bitmap.Config config,
+			Bitmap inBitmap) throws IOException {
+		return getBitmap(toInternalKey(key), Variant.ORIGINAL, reqWidth, reqHeight, config, null, inBitmap);
+	}
+
+	/**
+	 * Same with the config the policy picks from the bounds of the image. A HARDWARE decode
+	 * ignores inBitmap and the bitmap pool.
+	 */
+	public BitmapEntry getBitmap(String key, int reqWidth, int reqHeight, DecodeConfigPolicy configPolicy,
+			Bitmap inBitmap) throws IOException {
+		return getBitmap(toInternalKey(key), Variant.ORIGINAL, reqWidth, reqHeight, null, configPolicy, inBitmap);
+	}
+
+	/**
+	 * A variant is read with the metadata of its original, reading it keeps the original recent.
+	 */
+	private BitmapEntry getBitmap(String internalKey, Variant variant, int reqWidth, int reqHeight,
+			Bitmap.Config config, DecodeConfigPolicy configPolicy, Bitmap inBitmap) throws IOException {
+		DiskStore.Snapshot original = store.get(internalKey);
+		if (original == null) return null;
+		if (variant == Variant.ORIGINAL) return decodeBitmap(original, original, reqWidth, reqHeight, config, configPolicy, inBitmap);
+
+		try {
+			DiskStore.Snapshot snapshot = store.get(variant.toVariantKey(internalKey));
+			if (snapshot == null) return null;
+			return decodeBitmap(snapshot, original, reqWidth, reqHeight, config, configPolicy, inBitmap);
+		} finally {
+			original.close();
+		}
+	}
+
+	/**
+	 * Closes the snapshot, not the one the metadata is read from unless it is the same.
+	 */
+	private BitmapEntry decodeBitmap(DiskStore.Snapshot snapshot, DiskStore.Snapshot metadataSnapshot,
+			int reqWidth, int reqHeight, Bitmap.Config config, DecodeConfigPolicy configPolicy,
+			Bitmap inBitmap) throws IOException {
+		try {
+			if (snapshot.getLength(VALUE_IDX) == 0) return null;
+
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = config != null ? config : Bitmap.Config.ARGB_8888;
+			// decodeFileDescriptor leaves the offset where it was, both passes read from the start
+			InputStream in = snapshot.getInputStream(VALUE_IDX);
+			FileDescriptor fd = in instanceof FileInputStream ? ((FileInputStream) in).getFD() : null;
+			byte[] data = fd == null ? IOUtils.toByteArray(in, snapshot.getLength(VALUE_IDX)) : null;
+
+			boolean pooled = false;
+			if (reqWidth > 0 || inBitmap != null || bitmapPool != null || configPolicy != null) {
+				options.inJustDecodeBounds = true;
+				bitmapDecoder.decode(fd, data, options);
+				options.inJustDecodeBounds = false;
+				options.inSampleSize = SampleSize.calculate(options.outWidth, options.outHeight, reqWidth, reqHeight);
+				if (configPolicy != null) options.inPreferredConfig = configPolicy.resolve(options);
+
+				// Hardware bitmaps are immutable and can not be decoded into
+				boolean poolable = (inBitmap != null || bitmapPool != null)
+						&& DecodeConfigPolicy.isPoolable(options.inPreferredConfig);
+				if (inBitmap != null && poolable) {
+					options.inMutable = true;
+					options.inBitmap = inBitmap;
+				} else if (bitmapPool != null && poolable) {
+					bitmapPool.addInBitmapOptions(options);
+					pooled = true;
+				}
+			}
+
+			Bitmap bitmap;
+			try {
+				bitmap = bitmapDecoder.decode(fd, data, options);
+			} catch (IllegalArgumentException e) {
+				// The inBitmap can not hold this image, decode into a new one
+				if (pooled) bitmapPool.put(options.inBitmap);
+				options.inBitmap = null;
+				bitmap = bitmapDecoder.decode(fd, data, options);
+			}
+			return new BitmapEntry(bitmap, readMetadataBytes(metadataSnapshot));
 		} finally {
 			snapshot.close();
 		}
 	}
 
+	/**
+	 * DiskLruCache snapshot streams are plain file streams, valid until the snapshot is closed.
+	 */
+	private static FileInputStream getFileStream(DiskStore.Snapshot snapshot, int valueIndex) throws IOException {
+		InputStream in = snapshot.getInputStream(valueIndex);
+		if (!(in instanceof FileInputStream)) throw new IOException("Entry is not backed by a file.");
+		return (FileInputStream) in;
+	}
+
+	private static FileDescriptor getFileDescriptor(DiskStore.Snapshot snapshot, int valueIndex) throws IOException {
+		return getFileStream(snapshot, valueIndex).getFD();
+	}
+
 	public StringEntry getString(String key) throws IOException {
-		DiskLruCache.Snapshot snapshot = diskLruCache.get(toInternalKey(key));
+		DiskStore.Snapshot snapshot = store.get(toInternalKey(key));
 		if (snapshot == null) return null;
 
 		try {
-			return new StringEntry(snapshot.getString(VALUE_IDX), readMetadata(snapshot));
+			return new StringEntry(IOUtils.toString(snapshot.getInputStream(VALUE_IDX), "UTF-8"),
+					readMetadataBytes(snapshot));
 		} finally {
 			snapshot.close();
 		}
 	}
 
+	/**
+	 * Answered from the in-memory index, no entry file is opened.
+	 */
 	public boolean contains(String key) throws IOException {
-		DiskLruCache.Snapshot snapshot = diskLruCache.get(toInternalKey(key));
-		if(snapshot==null) return false;
+		return store.contains(toInternalKey(key));
+	}
 
-		snapshot.close();
-		return true;
+	/**
+	 * @return the size of the entry in bytes, value and metadata, or -1 if it is not cached
+	 */
+	public long getSize(String key) {
+		return store.getSize(toInternalKey(key));
 	}
 
-	public OutputStream openStream(String key) throws IOException {
+	/**
+	 * @return the time of the last read or write of the entry, 0 if none since the cache was
+	 * opened, or -1 if it is not cached
+	 */
+	public long getLastAccessTime(String key) {
+		return store.getLastAccessTime(toInternalKey(key));
+	}
+
+	public CacheOutputStream openStream(String key) throws IOException {
 		return openStream(key, new HashMap<String, Serializable>());
 	}
 
-	public OutputStream openStream(String key, Map<String, ? extends Serializable> metadata)
+	/**
+	 * Opens the entry for writing, waiting while another writer holds its lock stripe until that
+	 * writer closes its stream. A thread must close its stream before opening another one. The
+	 * variants of the previous original are removed.
+	 */
+	public CacheOutputStream openStream(String key, Map<String, ? extends Serializable> metadata)
 			throws IOException {
-		DiskLruCache.Editor editor = diskLruCache.edit(toInternalKey(key));
+		String internalKey = toInternalKey(key);
+		Semaphore writeLock = acquireWriteLock(internalKey);
+
+		DiskStore.Editor editor = null;
 		try {
+			editor = store.edit(internalKey);
+			if (editor == null) throw new IOException("Entry " + key + " is already being edited.");
+
 			writeMetadata(metadata, editor);
+			removeVariants(internalKey);
 			BufferedOutputStream bos = new BufferedOutputStream(editor.newOutputStream(VALUE_IDX));
-			return new CacheOutputStream(bos, editor);
+			return new CacheOutputStream(bos, editor, writeLock, writeGenerations, getGenerationSlot(internalKey));
 		} catch (IOException e) {
-			editor.abort();
+			if (editor != null) editor.abort();
+			writeLock.release();
 			throw e;
 		}
 	}
 
+	/**
+	 * Replace the metadata of an existing entry, keeping its value.
+	 * @return false if the entry is not in the cache any more
+	 */
+	public boolean putMetadata(String key, Map<String, ? extends Serializable> metadata) throws IOException {
+		String internalKey = toInternalKey(key);
+		Semaphore writeLock = acquireWriteLock(internalKey);
+		try {
+			DiskStore.Editor editor = store.edit(internalKey);
+			if (editor == null) throw new IOException("Entry " + key + " is already being edited.");
+
+			try {
+				writeMetadata(metadata, editor);
+				editor.commit();
+				return true;
+			} catch (IllegalStateException e) {
+				// Evicted since, a new entry needs a value too and the editor aborted itself
+				return false;
+			} catch (IOException e) {
+				editor.abort();
+				throw e;
+			}
+		} finally {
+			writeLock.release();
+		}
+	}
+
+	private int getGenerationSlot(String internalKey) {
+		return (internalKey.hashCode() & 0x7fffffff) % WRITE_GENERATION_SLOTS;
+	}
+
+	private Semaphore acquireWriteLock(String internalKey) throws IOException {
+		Semaphore writeLock = writeLocks[(internalKey.hashCode() & 0x7fffffff) % writeLocks.length];
+		try {
+			writeLock.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to write " + internalKey);
+		}
+		return writeLock;
+	}
+
 	public void put(String key, InputStream is) throws IOException {
 		put(key, is, new HashMap<String, Serializable>());
 	}
 
 	public void put(String key, InputStream is, Map<String, Serializable> annotations)
 			throws IOException {
-		OutputStream os = null;
+		CacheOutputStream os = null;
 		try {
 			os = openStream(key, annotations);
 			IOUtils.copy(is, os);
+		} catch (IOException e) {
+			// A failed read must not commit a truncated entry
+			if (os != null) os.abort();
+			throw e;
 		} finally {
 			if (os != null) os.close();
 		}
@@ -156,63 +532,101 @@ public class SimpleDiskCache
 	}
 
 	private void writeMetadata(Map<String, ? extends Serializable> metadata,
-			DiskLruCache.Editor editor) throws IOException {
-		ObjectOutputStream oos = null;
+			DiskStore.Editor editor) throws IOException {
+		OutputStream os = null;
 		try {
-			oos = new ObjectOutputStream(new BufferedOutputStream(
-					editor.newOutputStream(METADATA_IDX)));
-			oos.writeObject(metadata);
+			os = editor.newOutputStream(METADATA_IDX);
+			os.write(MetadataCodec.encode(metadata));
 		} finally {
-			IOUtils.closeQuietly(oos);
+			IOUtils.closeQuietly(os);
 		}
 	}
 
-	private Map<String, Serializable> readMetadata(DiskLruCache.Snapshot snapshot)
-			throws IOException {
-		ObjectInputStream ois = null;
+	/**
+	 * Variants of a previous original are stale. Called holding the original's lock, which
+	 * putVariant takes too, so none of them is being edited.
+	 */
+	private void removeVariants(String internalKey) throws IOException {
+		for (Variant variant : Variant.values()) {
+			if (variant != Variant.ORIGINAL) store.remove(variant.toVariantKey(internalKey));
+		}
+	}
+
+	/**
+	 * Called by the store without holding the original's lock, a variant being written by
+	 * putVariant can not be removed and is removed by putVariant itself. Variants have no variants.
+	 */
+	private void onOriginalEvicted(String internalKey) {
+		if (internalKey.indexOf('_') >= 0) return;
 		try {
-			ois = new ObjectInputStream(new BufferedInputStream(
-					snapshot.getInputStream(METADATA_IDX)));
-			@SuppressWarnings("unchecked")
-			Map<String, Serializable> annotations = (Map<String, Serializable>) ois.readObject();
-			return annotations;
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		} finally {
-			IOUtils.closeQuietly(ois);
+			removeVariants(internalKey);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
-	private String toInternalKey(String key) {
-		return md5(key);
+	/**
+	 * Raw metadata bytes, decoded only if the caller asks for the metadata.
+	 */
+	private static byte[] readMetadataBytes(DiskStore.Snapshot snapshot) throws IOException {
+		return IOUtils.toByteArray(snapshot.getInputStream(METADATA_IDX));
 	}
 
-	private String md5(String s) {
+	/**
+	 * Metadata that can not be decoded is treated as missing rather than failing the read.
+	 */
+	private static Map<String, Serializable> decodeMetadata(byte[] data) {
 		try {
-			MessageDigest m = MessageDigest.getInstance("MD5");
-			m.update(s.getBytes("UTF-8"));
-			byte[] digest = m.digest();
-			BigInteger bigInt = new BigInteger(1, digest);
-			return bigInt.toString(16);
-		} catch (NoSuchAlgorithmException e) {
-			throw new AssertionError();
-		} catch (UnsupportedEncodingException e) {
-			throw new AssertionError();
+			return MetadataCodec.decode(data);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new HashMap<String, Serializable>();
 		}
 	}
 
-	private class CacheOutputStream extends FilterOutputStream {
+	/**
+	 * Entries written before keys were fixed width are still found under their old key, only
+	 * looked for when the digest starts with a zero and the new key is not cached.
+	 */
+	private String toInternalKey(String key) {
+		String internalKey = keys.toInternalKey(key);
+		if (!store.contains(internalKey)) {
+			String legacyKey = DiskCacheKeys.toLegacyKey(internalKey);
+			if (legacyKey != internalKey && store.contains(legacyKey)) return legacyKey;
+		}
+		return internalKey;
+	}
+
+	public static class CacheOutputStream extends FilterOutputStream {
 
-		private final DiskLruCache.Editor editor;
+		private final DiskStore.Editor editor;
+		private final Semaphore writeLock;
+		private final AtomicLongArray writeGenerations;
+		private final int generationSlot;
 		private boolean failed = false;
+		private boolean closed = false;
 
-		private CacheOutputStream(OutputStream os, DiskLruCache.Editor editor) {
+		private CacheOutputStream(OutputStream os, DiskStore.Editor editor, Semaphore writeLock,
+				AtomicLongArray writeGenerations, int generationSlot) {
 			super(os);
 			this.editor = editor;
+			this.writeLock = writeLock;
+			this.writeGenerations = writeGenerations;
+			this.generationSlot = generationSlot;
+		}
+
+		/**
+		 * Discard the entry on close instead of committing it.
+		 */
+		public void abort() {
+			failed = true;
 		}
 
 		@Override
 		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+
 			IOException closeException = null;
 			try {
 				super.close();
@@ -220,10 +634,16 @@ public class SimpleDiskCache
 				closeException = e;
 			}
 
-			if (failed) {
-				editor.abort();
-			} else {
-				editor.commit();
+			try {
+				if (failed) {
+					editor.abort();
+				} else {
+					editor.commit();
+				}
+			} finally {
+				// After the commit, a reader that saw the new generation reads the new value
+				writeGenerations.incrementAndGet(generationSlot);
+				writeLock.release();
 			}
 
 			if (closeException != null) throw closeException;
@@ -270,62 +690,161 @@ public class SimpleDiskCache
 		}
 	}
 
-	public static class InputStreamEntry {
-		private final DiskLruCache.Snapshot snapshot;
-		private final Map<String, Serializable> metadata;
+	/**
+	 * An open entry, its file stays readable until close(). Besides the stream it exposes the file
+	 * itself so decoders and byte consumers can read it without copying through heap buffers.
+	 */
+	public static class InputStreamEntry implements Closeable {
+		private final DiskStore.Snapshot snapshot;
+		private Map<String, Serializable> metadata;
+		private boolean closed;
 
 		public InputStreamEntry(DiskLruCache.Snapshot snapshot, Map<String, Serializable> metadata) {
 			this.metadata = metadata;
+			this.snapshot = new DiskLruStore.LruSnapshot(snapshot);
+		}
+
+		private InputStreamEntry(DiskStore.Snapshot snapshot) {
 			this.snapshot = snapshot;
 		}
 
 		public InputStream getInputStream() {
+			checkNotClosed();
 			return snapshot.getInputStream(VALUE_IDX);
 		}
 
+		/**
+		 * Length of the value in bytes.
+		 */
+		public long getLength() {
+			return snapshot.getLength(VALUE_IDX);
+		}
+
+		/**
+		 * Descriptor of the value file, for BitmapFactory.decodeFileDescriptor. Shares its offset
+		 * with getInputStream() and getChannel(), valid until close().
+		 * @throws IOException with the PACK_FILE engine, values are not files of their own
+		 */
+		public FileDescriptor getFileDescriptor() throws IOException {
+			checkNotClosed();
+			return SimpleDiskCache.getFileDescriptor(snapshot, VALUE_IDX);
+		}
+
+		/**
+		 * Read-only channel of the value file, valid until close().
+		 * @throws IOException with the PACK_FILE engine
+		 */
+		public FileChannel getChannel() throws IOException {
+			checkNotClosed();
+			return getFileStream(snapshot, VALUE_IDX).getChannel();
+		}
+
+		/**
+		 * Map the value file read-only. The mapping stays readable after close() and after the
+		 * entry is evicted, it is released when the buffer is garbage collected.
+		 */
+		public MappedByteBuffer map() throws IOException {
+			return getChannel().map(FileChannel.MapMode.READ_ONLY, 0, getLength());
+		}
+
+		/**
+		 * The whole value in a new array, for consumers that need it on the heap. Large files are
+		 * copied out of a mapping, smaller values are read through the stream, which is as fast
+		 * with no mapping to set up.
+		 */
+		public byte[] getBytes() throws IOException {
+			checkNotClosed();
+			long length = getLength();
+			if (length >= MAP_THRESHOLD && snapshot.getInputStream(VALUE_IDX) instanceof FileInputStream) {
+				MappedByteBuffer mapped = map();
+				byte[] data = new byte[mapped.remaining()];
+				mapped.get(data);
+				return data;
+			}
+			return IOUtils.toByteArray(getInputStream(), length);
+		}
+
+		private void checkNotClosed() {
+			if (closed) throw new IllegalStateException("Entry is closed.");
+		}
+
+		/**
+		 * Read from the entry on first use, call it before close().
+		 */
 		public Map<String, Serializable> getMetadata() {
+			if (metadata == null) {
+				checkNotClosed();
+				try {
+					metadata = decodeMetadata(readMetadataBytes(snapshot));
+				} catch (IOException e) {
+					e.printStackTrace();
+					metadata = new HashMap<String, Serializable>();
+				}
+			}
 			return metadata;
 		}
 
+		@Override
 		public void close() {
+			if (closed) return;
+			closed = true;
 			snapshot.close();
-
 		}
 
 	}
 
 	public static class BitmapEntry {
 		private final Bitmap bitmap;
-		private final Map<String, Serializable> metadata;
+		private Map<String, Serializable> metadata;
+		private byte[] metadataBytes;
 
 		public BitmapEntry(Bitmap bitmap, Map<String, Serializable> metadata) {
 			this.bitmap = bitmap;
 			this.metadata = metadata;
 		}
 
+		private BitmapEntry(Bitmap bitmap, byte[] metadataBytes) {
+			this.bitmap = bitmap;
+			this.metadataBytes = metadataBytes;
+		}
+
 		public Bitmap getBitmap() {
 			return bitmap;
 		}
 
 		public Map<String, Serializable> getMetadata() {
+			if (metadata == null) {
+				metadata = decodeMetadata(metadataBytes);
+				metadataBytes = null;
+			}
 			return metadata;
 		}
 	}
 
 	public static class StringEntry {
 		private final String string;
-		private final Map<String, Serializable> metadata;
+		private Map<String, Serializable> metadata;
+		private byte[] metadataBytes;
 
 		public StringEntry(String string, Map<String, Serializable> metadata) {
 			this.string = string;
 			this.metadata = metadata;
 		}
 
+		private StringEntry(String string, byte[] metadataBytes) {
+			this.string = string;
+			this.metadataBytes = metadataBytes;
+		}
+
 		public String getString() {
 			return string;
 		}
 
 		public Map<String, Serializable> getMetadata() {
+			if (metadata == null) {
+				metadata = decodeMetadata(metadataBytes);
+				metadataBytes = null;
+			}
 			return metadata;
 		}
 	}
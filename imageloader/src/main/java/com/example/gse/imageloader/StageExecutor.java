@@ -0,0 +1,286 @@
+package com.example.gse.imageloader;
+
+import java.util.Comparator;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool running one stage of the load pipeline (disk, network or decode).
+ *
+ * Queued stages run highest priority first and, within a priority, newest first so the cells on
+ * screen after a fling do not wait behind the ones scrolled past.
+ *
+ * The queue depth is bounded so a slow stage pushes back instead of piling up work. When the
+ * queue is full either the lowest ranked stage is dropped, for stages fed from the UI thread and
+ * the network, or the submitting worker runs the stage itself, for the decode stage.
+ *
+ * A stage that throws is reported and its owner told, like a dropped one. Cancelling a stage never
+ * interrupts a worker already running it, stages stop on their own cancelled flags so file and
+ * socket I/O is not torn down halfway.
+ */
+class StageExecutor extends ThreadPoolExecutor
+{
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Higher priority first, then the most recently requested first
+     */
+    private static final Comparator<Runnable> STAGE_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            return compareRank((Stage) rhs, (Stage) lhs);
+        }
+    };
+
+    private final int queueCapacity;
+    private final boolean dropWhenFull;
+    private volatile ImageLoaderMetrics.LatencyHistogram queueWait;
+    private final AtomicLong failureCount = new AtomicLong();
+    // Stages handed to the pool and not started or removed yet, read without the queue lock
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    /**
+     *
+     * @param threads
+     * @param queueCapacity
+     * @param dropWhenFull true to drop the lowest ranked stage when full, false to run it on the caller
+     * @param threadFactory
+     */
+    StageExecutor(int threads, int queueCapacity, boolean dropWhenFull, ThreadFactory threadFactory)
+    {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(queueCapacity, STAGE_ORDER), threadFactory);
+        allowCoreThreadTimeOut(true);
+        this.queueCapacity = queueCapacity;
+        this.dropWhenFull = dropWhenFull;
+    }
+
+    /**
+     *
+     * @param queueWait records how long stages waited in the queue, may be null
+     */
+    void setQueueWaitHistogram(ImageLoaderMetrics.LatencyHistogram queueWait)
+    {
+        this.queueWait = queueWait;
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable)
+    {
+        super.beforeExecute(thread, runnable);
+        queuedCount.decrementAndGet();
+        ImageLoaderMetrics.LatencyHistogram queueWait = this.queueWait;
+        if (queueWait != null)
+            queueWait.recordSince(((Stage) runnable).enqueuedNanos);
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable throwable)
+    {
+        super.afterExecute(runnable, throwable);
+        if (((Stage) runnable).failed)
+            failureCount.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return the number of stages that threw since the pool was created
+     */
+    long getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    /**
+     * Takes no lock, unlike the size of the queue
+     *
+     * @return the number of stages waiting for a worker
+     */
+    int getQueuedCount()
+    {
+        return queuedCount.get();
+    }
+
+    /**
+     * Queue the stage
+     *
+     * @param stage
+     */
+    void enqueue(Stage stage)
+    {
+        stage.enqueuedNanos = System.nanoTime();
+        Stage dropped = null;
+        synchronized (this)
+        {
+            if (getQueue().size() >= queueCapacity)
+            {
+                if (!dropWhenFull)
+                {
+                    dropped = stage;
+                }
+                else
+                {
+                    Stage lowest = getLowestQueued();
+                    if (lowest == null || compareRank(stage, lowest) <= 0)
+                    {
+                        dropped = stage;
+                    }
+                    else if (getQueue().remove(lowest))
+                    {
+                        queuedCount.decrementAndGet();
+                        dropped = lowest;
+                    }
+                }
+            }
+
+            if (dropped != stage)
+            {
+                queuedCount.incrementAndGet();
+                execute(stage);
+            }
+        }
+
+        if (dropped == null)
+            return;
+
+        if (dropWhenFull)
+        {
+            dropped.dropped();
+        }
+        else
+        {
+            stage.run(); // Caller runs, pushing back on the stage that produced the work
+            if (stage.failed)
+                failureCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Move a queued stage to its new place after the priority or sequence of its owner changed
+     *
+     * @param stage
+     * @param priority
+     * @param sequence
+     */
+    void reorder(Stage stage, int priority, long sequence)
+    {
+        synchronized (this)
+        {
+            if (getQueue().remove(stage))
+            {
+                stage.setRank(priority, sequence);
+                execute(stage);
+            }
+            else
+            {
+                stage.setRank(priority, sequence);
+            }
+        }
+    }
+
+    /**
+     * Take a cancelled stage out of the queue right away so it does not hold queue capacity. A
+     * running stage is not interrupted, an interrupt closes the FileChannel it may be reading and
+     * aborts disk cache edits in progress.
+     *
+     * @param stage
+     */
+    void cancel(Stage stage)
+    {
+        stage.cancel(false);
+        if (remove(stage))
+            queuedCount.decrementAndGet();
+    }
+
+    /**
+     * Guarded by this
+     *
+     * @return
+     */
+    private Stage getLowestQueued()
+    {
+        Stage lowest = null;
+        for (Runnable runnable : getQueue())
+        {
+            Stage stage = (Stage) runnable;
+            if (lowest == null || compareRank(stage, lowest) < 0)
+                lowest = stage;
+        }
+        return lowest;
+    }
+
+    private static int compareRank(Stage lhs, Stage rhs)
+    {
+        if (lhs.priority != rhs.priority)
+            return lhs.priority < rhs.priority ? -1 : 1;
+        if (lhs.sequence != rhs.sequence)
+            return lhs.sequence < rhs.sequence ? -1 : 1;
+        return 0;
+    }
+
+    /**
+     * Unit of work of a stage, told when it is dropped under backpressure or throws so its owner
+     * can clean up
+     */
+    static class Stage extends FutureTask<Void>
+    {
+        private final Runnable onDropped;
+        private volatile int priority;
+        private volatile long sequence;
+        private volatile long enqueuedNanos;
+        private volatile boolean failed;
+
+        /**
+         *
+         * @param work
+         * @param priority higher runs first
+         * @param sequence higher runs first within a priority
+         * @param onDropped run on the submitting thread if the stage is dropped, or on the thread
+         *                  that ran it if it threw, may be null
+         */
+        Stage(Runnable work, int priority, long sequence, Runnable onDropped)
+        {
+            super(work, null);
+            this.priority = priority;
+            this.sequence = sequence;
+            this.onDropped = onDropped;
+        }
+
+        /**
+         * The work threw, including errors like OutOfMemoryError. Nobody calls get on a stage, so
+         * this is the only place the failure is seen.
+         *
+         * @param throwable
+         */
+        @Override
+        protected void setException(Throwable throwable)
+        {
+            super.setException(throwable);
+            failed = true;
+            throwable.printStackTrace();
+            if (onDropped != null)
+                onDropped.run();
+        }
+
+        /**
+         * Only while the stage is not queued, the queue order depends on it
+         */
+        private void setRank(int priority, long sequence)
+        {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        void dropped()
+        {
+            cancel(false);
+            if (onDropped != null)
+                onDropped.run();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.gse.imageloader;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheKeysTest
+{
+    private final DiskCacheKeys keys = new DiskCacheKeys();
+
+    /**
+     * How SimpleDiskCache derived keys before they were fixed width
+     */
+    static String legacyKey(String key) throws NoSuchAlgorithmException
+    {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        return new BigInteger(1, digest.digest(key.getBytes(Charset.forName("UTF-8")))).toString(16);
+    }
+
+    /**
+     *
+     * @param leadingZeros
+     * @return a url whose digest starts with at least that many zero hex digits
+     */
+    static String urlWithLeadingZeros(DiskCacheKeys keys, int leadingZeros)
+    {
+        String zeros = new String(new char[leadingZeros]).replace('\0', '0');
+        for (int i = 0; ; i++)
+        {
+            String url = "https://images.example.com/photos/" + i + ".jpg";
+            if (keys.toInternalKey(url).startsWith(zeros))
+                return url;
+        }
+    }
+
+    @Test
+    public void keysAreFixedWidthLowercaseHex()
+    {
+        for (int i = 0; i < 1000; i++)
+        {
+            String internalKey = keys.toInternalKey("https://images.example.com/photos/" + i + ".jpg");
+            assertEquals(32, internalKey.length());
+            assertTrue(internalKey, internalKey.matches("[0-9a-f]{32}"));
+        }
+    }
+
+    @Test
+    public void keysMatchTheLegacyDigestWithoutLeadingZeros() throws NoSuchAlgorithmException
+    {
+        for (int i = 0; i < 1000; i++)
+        {
+            String url = "https://images.example.com/photos/" + i + ".jpg";
+            assertEquals(legacyKey(url), DiskCacheKeys.toLegacyKey(keys.toInternalKey(url)));
+        }
+    }
+
+    @Test
+    public void leadingZerosAreKeptAndOnlyDroppedForTheLegacyKey() throws NoSuchAlgorithmException
+    {
+        String url = urlWithLeadingZeros(keys, 2);
+        String internalKey = keys.toInternalKey(url);
+
+        assertTrue(internalKey.startsWith("00"));
+        assertEquals(legacyKey(url), DiskCacheKeys.toLegacyKey(internalKey));
+        assertEquals(internalKey.replaceFirst("^0+", ""), DiskCacheKeys.toLegacyKey(internalKey));
+    }
+
+    @Test
+    public void legacyKeyIsTheSameInstanceWithoutLeadingZero()
+    {
+        String internalKey = keys.toInternalKey("https://images.example.com/a.jpg");
+        if (internalKey.charAt(0) == '0')
+            internalKey = keys.toInternalKey("https://images.example.com/b.jpg");
+
+        assertSame(internalKey, DiskCacheKeys.toLegacyKey(internalKey));
+        // A digest of all zeros keeps its last digit, like BigInteger did
+        assertEquals("0", DiskCacheKeys.toLegacyKey("00000000000000000000000000000000"));
+    }
+
+    @Test
+    public void keysAreTheSameAcrossThreadsAndAfterEviction() throws InterruptedException
+    {
+        final String url = "https://images.example.com/photos/shared.jpg";
+        String expected = keys.toInternalKey(url);
+
+        // Past the remembered keys, derived again
+        for (int i = 0; i < 1000; i++)
+            keys.toInternalKey("https://images.example.com/photos/" + i + ".jpg");
+        assertEquals(expected, keys.toInternalKey(url));
+
+        final AtomicReference<String> fromOtherThread = new AtomicReference<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fromOtherThread.set(new DiskCacheKeys().toInternalKey(url));
+                }
+                catch (Throwable t) {
+                    failure.set(t);
+                }
+                done.countDown();
+            }
+        }).start();
+        done.await();
+
+        assertNull(failure.get());
+        assertEquals(expected, fromOtherThread.get());
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.gse.imageloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskWriteQueueTest
+{
+    private static final long MAX_BYTES = 1024;
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Thread> writerThreads = new ArrayList<>();
+    private DiskWriteQueue queue;
+    private SimpleDiskCache diskCache;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        diskCache = SimpleDiskCache.open(folder.newFolder(), 1, 1024 * 1024);
+        queue = new DiskWriteQueue(MAX_BYTES, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DiskWriteQueueTest Writer");
+                thread.setDaemon(true);
+                synchronized (writerThreads) {
+                    writerThreads.add(thread);
+                }
+                return thread;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        diskCache.close();
+    }
+
+    private boolean offer(SimpleDiskCache diskCache, String key, int length)
+    {
+        return queue.offer(diskCache, key, new byte[length], new HashMap<String, Serializable>());
+    }
+
+    private void awaitDrained() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (queue.getPendingBytes() > 0)
+        {
+            assertTrue("Queue not drained", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Thread lastWriterThread()
+    {
+        synchronized (writerThreads) {
+            return writerThreads.get(writerThreads.size() - 1);
+        }
+    }
+
+    @Test
+    public void queuedWritesReachTheDiskCache() throws IOException, InterruptedException
+    {
+        assertTrue(offer(diskCache, "https://images.example.com/a.jpg", 100));
+        assertTrue(offer(diskCache, "https://images.example.com/b.jpg", 200));
+        awaitDrained();
+
+        try (SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream("https://images.example.com/a.jpg")) {
+            assertEquals(100, entry.getLength());
+        }
+        try (SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream("https://images.example.com/b.jpg")) {
+            assertEquals(200, entry.getLength());
+        }
+        assertNull(queue.get("https://images.example.com/a.jpg"));
+    }
+
+    @Test
+    public void offersLargerThanTheBudgetAreWrittenRightAway() throws IOException
+    {
+        byte[] data = new byte[(int) MAX_BYTES * 3];
+        data[0] = 1;
+        assertTrue(queue.offer(diskCache, "https://images.example.com/large.jpg", data, new HashMap<String, Serializable>()));
+
+        // Written before offer returned, no writer thread needed
+        try (SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream("https://images.example.com/large.jpg")) {
+            assertArrayEquals(data, entry.getBytes());
+        }
+        assertTrue(writerThreads.isEmpty());
+    }
+
+    @Test
+    public void offersThatDoNotFitAreDropped() throws InterruptedException
+    {
+        queue = new DiskWriteQueue(MAX_BYTES, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                // Ends right away without draining, the writes stay queued
+                return new Thread();
+            }
+        });
+
+        assertTrue(offer(diskCache, "https://images.example.com/a.jpg", (int) MAX_BYTES / 2));
+        assertTrue(offer(diskCache, "https://images.example.com/b.jpg", (int) MAX_BYTES / 2));
+        assertFalse(offer(diskCache, "https://images.example.com/c.jpg", 1));
+        // Replacing a queued write only needs room for the difference
+        assertTrue(offer(diskCache, "https://images.example.com/a.jpg", (int) MAX_BYTES / 2));
+        assertEquals(MAX_BYTES, queue.getPendingBytes());
+    }
+
+    @Test
+    public void aFailedWriteDoesNotStopTheQueue() throws IOException, InterruptedException
+    {
+        SimpleDiskCache closed = SimpleDiskCache.open(folder.newFolder(), 1, 1024 * 1024);
+        closed.close();
+
+        // The closed DiskLruCache throws IllegalStateException
+        assertTrue(offer(closed, "https://images.example.com/a.jpg", 100));
+        assertTrue(offer(diskCache, "https://images.example.com/b.jpg", 100));
+        awaitDrained();
+
+        assertTrue(diskCache.contains("https://images.example.com/b.jpg"));
+        assertEquals(1, writerThreads.size());
+        assertTrue(lastWriterThread().isAlive());
+    }
+
+    @Test
+    public void anInterruptedWriterIsReplaced() throws IOException, InterruptedException
+    {
+        assertTrue(offer(diskCache, "https://images.example.com/a.jpg", 100));
+        awaitDrained();
+
+        Thread first = lastWriterThread();
+        first.interrupt();
+        first.join(TIMEOUT);
+        assertFalse(first.isAlive());
+
+        assertTrue(offer(diskCache, "https://images.example.com/b.jpg", 100));
+        awaitDrained();
+        assertTrue(diskCache.contains("https://images.example.com/b.jpg"));
+        assertEquals(2, writerThreads.size());
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.gse.imageloader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The policy against responses of a stubbed connection, the requests themselves are covered by
+ * ImageFetcherTest
+ */
+public class HttpCachePolicyTest
+{
+    private static final long TTL = 60 * 1000L;
+    private static final long STALE_WHILE_REVALIDATE = 10 * 60 * 1000L;
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private final HttpCachePolicy cachePolicy = new HttpCachePolicy(TTL, STALE_WHILE_REVALIDATE);
+    private final long now = 1500000000000L;
+
+    /**
+     * Response headers without a connection
+     */
+    private static class StubConnection extends URLConnection
+    {
+        private final Map<String, String> headers = new HashMap<>();
+        private long expiration;
+        private long date;
+
+        StubConnection() throws IOException
+        {
+            super(new URL("http://images.example.com/image.jpg"));
+        }
+
+        StubConnection header(String name, String value)
+        {
+            headers.put(name, value);
+            return this;
+        }
+
+        @Override
+        public void connect()
+        {
+            connected = true;
+        }
+
+        @Override
+        public String getHeaderField(String name)
+        {
+            return headers.get(name);
+        }
+
+        @Override
+        public long getExpiration()
+        {
+            return expiration;
+        }
+
+        @Override
+        public long getDate()
+        {
+            return date;
+        }
+    }
+
+    private Map<String, Serializable> getMetadata(String cacheControl) throws IOException
+    {
+        StubConnection connection = new StubConnection().header("ETag", ETAG);
+        if (cacheControl != null)
+            connection.header("Cache-Control", cacheControl);
+        return cachePolicy.getMetadata(connection, now);
+    }
+
+    @Test
+    public void maxAgeIsFreshUntilItPasses() throws IOException
+    {
+        Map<String, Serializable> metadata = getMetadata("max-age=3600");
+
+        assertEquals(HttpCachePolicy.FRESH, cachePolicy.getFreshness(metadata, now + 3600 * 1000L - 1));
+        assertEquals(HttpCachePolicy.STALE, cachePolicy.getFreshness(metadata, now + 3600 * 1000L));
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(metadata, now + 3600 * 1000L + STALE_WHILE_REVALIDATE));
+    }
+
+    @Test
+    public void staleWhileRevalidateZeroExpiresRightAway() throws IOException
+    {
+        Map<String, Serializable> metadata = getMetadata("max-age=60, stale-while-revalidate=0");
+
+        assertEquals(HttpCachePolicy.FRESH, cachePolicy.getFreshness(metadata, now));
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(metadata, now + 60 * 1000L));
+    }
+
+    @Test
+    public void expiresIsRelativeToTheServerDate() throws IOException
+    {
+        StubConnection connection = new StubConnection();
+        // The server clock is an hour behind
+        connection.date = now - 3600 * 1000L;
+        connection.expiration = connection.date + 120 * 1000L;
+        Map<String, Serializable> metadata = cachePolicy.getMetadata(connection, now);
+
+        assertEquals(now + 120 * 1000L, metadata.get(SimpleDiskCache.METADATA_EXPIRES_AT));
+    }
+
+    @Test
+    public void noCacheIsRevalidatedBeforeEveryUse() throws IOException
+    {
+        Map<String, Serializable> metadata = getMetadata("no-cache");
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(metadata, now));
+
+        // Not even served stale while the default stale-while-revalidate lasts
+        metadata = cachePolicy.getRevalidatedMetadata(metadata, new StubConnection().header("Cache-Control", "no-cache"), now + 1000L);
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(metadata, now + 1000L));
+    }
+
+    @Test
+    public void noCacheWinsOverMaxAgeAndStaleWhileRevalidate() throws IOException
+    {
+        Map<String, Serializable> metadata = getMetadata("max-age=3600, stale-while-revalidate=3600, no-cache");
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(metadata, now));
+    }
+
+    @Test
+    public void noStoreIsNotStorable() throws IOException
+    {
+        assertFalse(cachePolicy.isStorable(new StubConnection().header("Cache-Control", "no-store")));
+        assertFalse(cachePolicy.isStorable(new StubConnection().header("Cache-Control", "max-age=60, No-Store ")));
+        assertTrue(cachePolicy.isStorable(new StubConnection().header("Cache-Control", "no-cache")));
+        assertTrue(cachePolicy.isStorable(new StubConnection()));
+    }
+
+    @Test
+    public void hugeMaxAgeDoesNotOverflow() throws IOException
+    {
+        Map<String, Serializable> metadata = getMetadata("max-age=9223372036854775807, stale-while-revalidate=99999999999999999999999");
+
+        Long expiresAt = (Long) metadata.get(SimpleDiskCache.METADATA_EXPIRES_AT);
+        Long staleUntil = (Long) metadata.get(SimpleDiskCache.METADATA_STALE_UNTIL);
+        assertTrue(expiresAt > now);
+        assertTrue(staleUntil >= expiresAt);
+        assertEquals(HttpCachePolicy.FRESH, cachePolicy.getFreshness(metadata, now + 100L * 365 * 24 * 60 * 60 * 1000));
+    }
+
+    @Test
+    public void defaultsApplyWithoutCacheControl() throws IOException
+    {
+        Map<String, Serializable> metadata = getMetadata(null);
+
+        assertEquals(HttpCachePolicy.FRESH, cachePolicy.getFreshness(metadata, now + TTL - 1));
+        assertEquals(HttpCachePolicy.STALE, cachePolicy.getFreshness(metadata, now + TTL));
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(metadata, now + TTL + STALE_WHILE_REVALIDATE));
+    }
+
+    @Test
+    public void metadataOfOtherTypesIsTreatedAsExpired()
+    {
+        Map<String, Serializable> metadata = new HashMap<>();
+        metadata.put(SimpleDiskCache.METADATA_EXPIRES_AT, "tomorrow");
+        metadata.put(SimpleDiskCache.METADATA_STALE_UNTIL, Boolean.TRUE);
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(metadata, now));
+
+        // Other numbers are read as times
+        metadata.put(SimpleDiskCache.METADATA_EXPIRES_AT, Integer.MAX_VALUE);
+        assertEquals(HttpCachePolicy.FRESH, cachePolicy.getFreshness(metadata, Integer.MAX_VALUE - 1));
+        assertEquals(HttpCachePolicy.EXPIRED, cachePolicy.getFreshness(null, now));
+    }
+
+    @Test
+    public void validatorsGoOutWithTheRequest() throws IOException
+    {
+        Map<String, Serializable> metadata = cachePolicy.getMetadata(
+                new StubConnection().header("ETag", ETAG).header("Last-Modified", LAST_MODIFIED), now);
+
+        StubConnection connection = new StubConnection();
+        cachePolicy.addValidators(connection, metadata);
+        assertEquals(ETAG, connection.getRequestProperty("If-None-Match"));
+        assertEquals(LAST_MODIFIED, connection.getRequestProperty("If-Modified-Since"));
+
+        connection = new StubConnection();
+        cachePolicy.addValidators(connection, null);
+        assertNull(connection.getRequestProperty("If-None-Match"));
+    }
+
+    @Test
+    public void revalidationKeepsTheValidators() throws IOException
+    {
+        Map<String, Serializable> metadata = getMetadata("max-age=0");
+        assertEquals(ETAG, metadata.get(SimpleDiskCache.METADATA_ETAG));
+
+        // A 304 without an ETag keeps the one cached, a new one replaces it
+        long later = now + STALE_WHILE_REVALIDATE + 1;
+        metadata = cachePolicy.getRevalidatedMetadata(metadata, new StubConnection().header("Cache-Control", "max-age=0"), later);
+        assertEquals(ETAG, metadata.get(SimpleDiskCache.METADATA_ETAG));
+        assertFalse(cachePolicy.getFreshness(metadata, later) == HttpCachePolicy.FRESH);
+
+        metadata = cachePolicy.getRevalidatedMetadata(metadata, new StubConnection().header("ETag", "\"v2\""), later);
+        assertEquals("\"v2\"", metadata.get(SimpleDiskCache.METADATA_ETAG));
+        assertEquals(HttpCachePolicy.FRESH, cachePolicy.getFreshness(metadata, later));
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.gse.imageloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches from a local server through the tiers ImageLoader keeps, with the disk writer held back
+ * where a test needs the write still queued
+ */
+public class ImageFetcherTest
+{
+    private static final String ETAG = "\"v1\"";
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final HttpCachePolicy cachePolicy = new HttpCachePolicy(60 * 1000L, 10 * 60 * 1000L);
+    private final AtomicInteger fullTransfers = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final CountDownLatch writerReleased = new CountDownLatch(1);
+    private final byte[] image = new byte[4096];
+    private volatile boolean failing;
+    private HttpServer server;
+    private String url;
+    private SimpleDiskCache diskCache;
+    private EncodedMemoryCache encodedMemoryCache;
+    private DiskWriteQueue diskWriteQueue;
+    private ImageFetcher fetcher;
+
+    private final ImageFetcher.Listener listener = new ImageFetcher.Listener() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void onConnection(URLConnection connection) {
+        }
+
+        @Override
+        public void onResponse(int contentLength) {
+        }
+
+        @Override
+        public void onBytes(byte[] buffer, int count) {
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException
+    {
+        image[0] = 1;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image.jpg", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+                if (failing)
+                {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+                }
+                else if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                }
+                else
+                {
+                    fullTransfers.incrementAndGet();
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, image.length);
+                    OutputStream body = exchange.getResponseBody();
+                    body.write(image);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/image.jpg";
+
+        diskCache = SimpleDiskCache.open(folder.newFolder(), 1, 1024 * 1024);
+        encodedMemoryCache = new EncodedMemoryCache(1024 * 1024);
+        diskWriteQueue = new DiskWriteQueue(1024 * 1024, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writerReleased.await();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        runnable.run();
+                    }
+                }, "ImageFetcherTest Writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        fetcher = new ImageFetcher(encodedMemoryCache, diskWriteQueue, new ImageLoaderMetrics(null, null, null));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        writerReleased.countDown();
+        server.stop(0);
+        diskCache.close();
+    }
+
+    private void awaitDrained() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (diskWriteQueue.getPendingBytes() > 0)
+        {
+            assertTrue("Queue not drained", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Map<String, Serializable> expiredMetadata()
+    {
+        Map<String, Serializable> metadata = new HashMap<>();
+        metadata.put(SimpleDiskCache.METADATA_ETAG, ETAG);
+        metadata.put(SimpleDiskCache.METADATA_EXPIRES_AT, 0L);
+        metadata.put(SimpleDiskCache.METADATA_STALE_UNTIL, 0L);
+        return metadata;
+    }
+
+    private int getFreshness(Map<String, Serializable> metadata)
+    {
+        return cachePolicy.getFreshness(metadata, System.currentTimeMillis());
+    }
+
+    private Map<String, Serializable> getDiskMetadata() throws IOException
+    {
+        try (SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream(url)) {
+            assertNotNull(entry);
+            return entry.getMetadata();
+        }
+    }
+
+    @Test
+    public void aDownloadIsKeptInMemoryAndQueuedForTheDisk() throws IOException, InterruptedException
+    {
+        ImageFetcher.Result result = fetcher.fetch(url, diskCache, null, cachePolicy, listener);
+
+        assertEquals(ImageFetcher.FETCH_DOWNLOADED, result.status);
+        assertArrayEquals(image, result.data);
+        assertTrue(encodedMemoryCache.contains(url));
+        assertNotNull(diskWriteQueue.get(url));
+
+        writerReleased.countDown();
+        awaitDrained();
+        assertEquals(HttpCachePolicy.FRESH, getFreshness(getDiskMetadata()));
+        assertEquals(1, fullTransfers.get());
+    }
+
+    @Test
+    public void notModifiedRenewsAWriteStillQueuedAndDecodesItsBytes() throws IOException, InterruptedException
+    {
+        // Downloaded, expired and revalidated before the writer got to it
+        assertTrue(diskWriteQueue.offer(diskCache, url, image, expiredMetadata()));
+
+        ImageFetcher.Result result = fetcher.fetch(url, diskCache, expiredMetadata(), cachePolicy, listener);
+
+        assertEquals(ImageFetcher.FETCH_NOT_MODIFIED, result.status);
+        assertEquals(1, notModified.get());
+        assertFalse(diskCache.contains(url));
+        assertEquals(HttpCachePolicy.FRESH, getFreshness(diskWriteQueue.get(url).metadata));
+
+        ImageFetcher.Copy copy = fetcher.getCopy(url, diskCache, result);
+        assertNotNull(copy);
+        assertArrayEquals(image, copy.data);
+        assertFalse(copy.diskCached);
+
+        // The write reaches the disk with the renewed metadata
+        writerReleased.countDown();
+        awaitDrained();
+        assertNull(diskWriteQueue.get(url));
+        assertEquals(HttpCachePolicy.FRESH, getFreshness(getDiskMetadata()));
+        assertEquals(0, fullTransfers.get());
+    }
+
+    @Test
+    public void notModifiedRenewsTheEncodedAndDiskCopies() throws IOException, InterruptedException
+    {
+        writerReleased.countDown();
+        assertTrue(diskWriteQueue.offer(diskCache, url, image, expiredMetadata()));
+        awaitDrained();
+        encodedMemoryCache.put(url, image, expiredMetadata());
+
+        ImageFetcher.Result result = fetcher.fetch(url, diskCache, expiredMetadata(), cachePolicy, listener);
+
+        assertEquals(ImageFetcher.FETCH_NOT_MODIFIED, result.status);
+        assertEquals(HttpCachePolicy.FRESH, getFreshness(getDiskMetadata()));
+        assertEquals(HttpCachePolicy.FRESH, getFreshness(encodedMemoryCache.get(url).metadata));
+
+        // Decoded from memory, stored variants may still serve it
+        ImageFetcher.Copy copy = fetcher.getCopy(url, diskCache, result);
+        assertArrayEquals(image, copy.data);
+        assertTrue(copy.diskCached);
+
+        encodedMemoryCache.remove(url);
+        copy = fetcher.getCopy(url, diskCache, result);
+        assertNull(copy.data);
+        assertTrue(copy.diskCached);
+    }
+
+    @Test
+    public void aFailedRevalidationServesTheExpiredCopy() throws IOException, InterruptedException
+    {
+        writerReleased.countDown();
+        assertTrue(diskWriteQueue.offer(diskCache, url, image, expiredMetadata()));
+        awaitDrained();
+        failing = true;
+
+        ImageFetcher.Result result = fetcher.fetch(url, diskCache, expiredMetadata(), cachePolicy, listener);
+
+        // A failure, not taken for a 304, the copy stays expired
+        assertEquals(ImageFetcher.FETCH_FAILED, result.status);
+        assertEquals(HttpCachePolicy.EXPIRED, getFreshness(getDiskMetadata()));
+        ImageFetcher.Copy copy = fetcher.getCopy(url, diskCache, result);
+        assertNotNull(copy);
+        assertNull(copy.data);
+        assertTrue(copy.diskCached);
+    }
+
+    @Test
+    public void aFailedRevalidationOfACopyThatIsGoneHasNothingToDecode() throws IOException
+    {
+        failing = true;
+
+        // Evicted from every tier since its metadata was read
+        ImageFetcher.Result result = fetcher.fetch(url, diskCache, expiredMetadata(), cachePolicy, listener);
+
+        assertEquals(ImageFetcher.FETCH_FAILED, result.status);
+        assertNull(fetcher.getCopy(url, diskCache, result));
+    }
+
+    @Test
+    public void notModifiedForACopyThatIsGoneHasNothingToDecode() throws IOException
+    {
+        ImageFetcher.Result result = fetcher.fetch(url, diskCache, expiredMetadata(), cachePolicy, listener);
+
+        assertEquals(ImageFetcher.FETCH_NOT_MODIFIED, result.status);
+        assertNull(fetcher.getCopy(url, diskCache, result));
+        assertFalse(diskCache.contains(url));
+    }
+}
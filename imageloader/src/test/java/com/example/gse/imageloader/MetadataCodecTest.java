@@ -0,0 +1,129 @@
+package com.example.gse.imageloader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetadataCodecTest
+{
+    /**
+     * What ImageLoader stores for a typical response
+     */
+    static HashMap<String, Serializable> responseMetadata()
+    {
+        HashMap<String, Serializable> metadata = new HashMap<>();
+        metadata.put(SimpleDiskCache.METADATA_ETAG, "\"5d8c72a5edda8d6a\"");
+        metadata.put(SimpleDiskCache.METADATA_LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+        metadata.put(SimpleDiskCache.METADATA_EXPIRES_AT, 1445412480000L);
+        metadata.put(SimpleDiskCache.METADATA_STALE_UNTIL, 1446017280000L);
+        return metadata;
+    }
+
+    /**
+     * The metadata file SimpleDiskCache wrote before MetadataCodec
+     */
+    static byte[] javaSerialized(HashMap<String, Serializable> metadata) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(metadata);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void roundTripsResponseMetadata() throws IOException
+    {
+        HashMap<String, Serializable> metadata = responseMetadata();
+        assertEquals(metadata, MetadataCodec.decode(MetadataCodec.encode(metadata)));
+    }
+
+    @Test
+    public void roundTripsEveryValueType() throws IOException
+    {
+        HashMap<String, Serializable> metadata = new HashMap<>();
+        metadata.put("string", "caf\u00e9 \u2615");
+        metadata.put("long", Long.MIN_VALUE);
+        metadata.put("int", -7);
+        metadata.put("boolean", Boolean.TRUE);
+        metadata.put("null", null);
+        metadata.put("serialized", new ArrayList<>(Arrays.asList("a", "b")));
+        metadata.put("", "empty key");
+
+        assertEquals(metadata, MetadataCodec.decode(MetadataCodec.encode(metadata)));
+    }
+
+    @Test
+    public void encodesNullAsEmpty() throws IOException
+    {
+        assertTrue(MetadataCodec.decode(MetadataCodec.encode(null)).isEmpty());
+    }
+
+    @Test
+    public void knownKeysAreShorterThanJavaSerialization() throws IOException
+    {
+        HashMap<String, Serializable> metadata = responseMetadata();
+        byte[] encoded = MetadataCodec.encode(metadata);
+        assertTrue(encoded.length < javaSerialized(metadata).length / 2);
+    }
+
+    @Test
+    public void decodesLegacyJavaSerializedMetadata() throws IOException
+    {
+        HashMap<String, Serializable> metadata = responseMetadata();
+        metadata.put("custom", 42);
+
+        Map<String, Serializable> decoded = MetadataCodec.decode(javaSerialized(metadata));
+        assertEquals(metadata, decoded);
+        // A copy the caller may change
+        decoded.put("other", "value");
+    }
+
+    @Test
+    public void rejectsLegacySerializedObjectsThatAreNotMaps() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject("not a map");
+        oos.close();
+
+        assertDecodeFails(bytes.toByteArray());
+    }
+
+    @Test
+    public void rejectsCorruptAndTruncatedBytes() throws IOException
+    {
+        assertDecodeFails(new byte[0]);
+        assertDecodeFails(new byte[] { 1, 2, 3, 4 });
+
+        byte[] encoded = MetadataCodec.encode(responseMetadata());
+        for (int length = 0; length < encoded.length; length++)
+            assertDecodeFails(Arrays.copyOf(encoded, length));
+
+        byte[] unknownVersion = encoded.clone();
+        unknownVersion[2] = 99;
+        assertDecodeFails(unknownVersion);
+    }
+
+    private static void assertDecodeFails(byte[] data)
+    {
+        try {
+            MetadataCodec.decode(data);
+            fail("Decoded " + Arrays.toString(data));
+        }
+        catch (IOException e) {
+            // Expected, SimpleDiskCache treats the metadata as missing
+        }
+    }
+}
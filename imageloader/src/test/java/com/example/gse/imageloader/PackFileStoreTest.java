@@ -0,0 +1,382 @@
+package com.example.gse.imageloader;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What survives reopening the store, after a clean close and after a crash
+ */
+public class PackFileStoreTest
+{
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 2;
+    private static final long MAX_SIZE = 16 * 1024 * 1024;
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private PackFileStore store;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = folder.newFolder();
+        store = open(dir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        store.close();
+    }
+
+    private static PackFileStore open(File dir, int appVersion, long packSize) throws IOException
+    {
+        return new PackFileStore(dir, appVersion, VALUE_COUNT, MAX_SIZE, packSize);
+    }
+
+    private void reopen() throws IOException
+    {
+        store.close();
+        store = open(dir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+    }
+
+    private static byte[] value(String key, int length)
+    {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) key.hashCode());
+        return value;
+    }
+
+    private static void write(DiskStore store, String key, byte[] value) throws IOException
+    {
+        DiskStore.Editor editor = store.edit(key);
+        OutputStream out = editor.newOutputStream(0);
+        out.write(value);
+        out.close();
+        out = editor.newOutputStream(1);
+        out.write(key.getBytes("UTF-8"));
+        out.close();
+        editor.commit();
+    }
+
+    private static byte[] read(DiskStore store, String key) throws IOException
+    {
+        DiskStore.Snapshot snapshot = store.get(key);
+        if (snapshot == null)
+            return null;
+        try {
+            return IOUtils.toByteArray(snapshot.getInputStream(0));
+        }
+        finally {
+            snapshot.close();
+        }
+    }
+
+    private static File[] packFiles(File dir)
+    {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".pack");
+            }
+        });
+    }
+
+    /**
+     * The files as a crash would leave them, the store keeps running
+     */
+    private File copyAsCrashed() throws IOException
+    {
+        File crashed = folder.newFolder();
+        for (File file : dir.listFiles())
+            Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+        return crashed;
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException
+    {
+        write(store, "a", value("a", 100));
+        write(store, "b", value("b", 200));
+        write(store, "a", value("a", 300));
+        reopen();
+
+        assertArrayEquals(value("a", 300), read(store, "a"));
+        assertArrayEquals(value("b", 200), read(store, "b"));
+        assertEquals(300 + 1, store.getSize("a"));
+        assertNull(read(store, "c"));
+    }
+
+    @Test
+    public void recordsAfterTheCheckpointAreReplayed() throws IOException
+    {
+        write(store, "a", value("a", 100));
+        reopen();
+        // Appended after the checkpoint close wrote, then the process dies
+        write(store, "b", value("b", 200));
+        write(store, "a", value("a", 50));
+
+        PackFileStore crashed = open(copyAsCrashed(), APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+        try {
+            assertArrayEquals(value("a", 50), read(crashed, "a"));
+            assertArrayEquals(value("b", 200), read(crashed, "b"));
+        }
+        finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void aCorruptCheckpointReplaysEverything() throws IOException
+    {
+        write(store, "a", value("a", 100));
+        write(store, "b", value("b", 200));
+        store.close();
+
+        OutputStream checkpoint = new FileOutputStream(new File(dir, "index"));
+        checkpoint.write(new byte[] { 0x49, 0x4C, 0x49, 0x58, 0, 0, 0, 2, 0, 0, 0, 1, 0, 0 });
+        checkpoint.close();
+
+        store = open(dir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+        assertArrayEquals(value("a", 100), read(store, "a"));
+        assertArrayEquals(value("b", 200), read(store, "b"));
+    }
+
+    /**
+     * A checkpoint of packs that were deleted and written again under the same ids
+     */
+    @Test
+    public void aCheckpointOutOfStepWithThePacksReplaysEverything() throws IOException
+    {
+        write(store, "a", value("a", 100));
+        store.close();
+        byte[] checkpoint = Files.readAllBytes(new File(dir, "index").toPath());
+
+        File otherDir = folder.newFolder();
+        PackFileStore other = open(otherDir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+        write(other, "b", value("b", 200));
+        write(other, "c", value("c", 10));
+        other.close();
+        // It names a at the offset of b and has the replay start inside b
+        Files.write(new File(otherDir, "index").toPath(), checkpoint);
+
+        store = open(otherDir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+        assertFalse(store.contains("a"));
+        assertArrayEquals(value("b", 200), read(store, "b"));
+        assertArrayEquals(value("c", 10), read(store, "c"));
+    }
+
+    @Test
+    public void aTornRecordAtTheEndIsCutOff() throws IOException
+    {
+        write(store, "a", value("a", 100));
+        reopen();
+        write(store, "b", value("b", 200));
+
+        // Without a checkpoint past it, b half written when the process died
+        File crashedDir = copyAsCrashed();
+        File pack = packFiles(crashedDir)[0];
+        long intactLength = pack.length() - 100;
+        RandomAccessFile file = new RandomAccessFile(pack, "rw");
+        file.setLength(intactLength);
+        file.close();
+
+        PackFileStore crashed = open(crashedDir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+        try {
+            assertArrayEquals(value("a", 100), read(crashed, "a"));
+            assertFalse(crashed.contains("b"));
+            assertTrue(pack.length() < intactLength);
+
+            // Appended where the torn record was cut off
+            write(crashed, "c", value("c", 10));
+        }
+        finally {
+            crashed.close();
+        }
+
+        crashed = open(crashedDir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+        try {
+            assertArrayEquals(value("a", 100), read(crashed, "a"));
+            assertArrayEquals(value("c", 10), read(crashed, "c"));
+            assertFalse(crashed.contains("b"));
+        }
+        finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void aRecordFailingItsCrcEndsThePack() throws IOException
+    {
+        write(store, "a", value("a", 100));
+        write(store, "b", value("b", 200));
+        store.close();
+        new File(dir, "index").delete();
+
+        // Flip the last byte of b
+        File pack = packFiles(dir)[0];
+        RandomAccessFile file = new RandomAccessFile(pack, "rw");
+        file.seek(pack.length() - 1);
+        int last = file.read();
+        file.seek(pack.length() - 1);
+        file.write(last ^ 0xff);
+        file.close();
+
+        store = open(dir, APP_VERSION, PackFileStore.DEFAULT_PACK_SIZE);
+        assertArrayEquals(value("a", 100), read(store, "a"));
+        assertFalse(store.contains("b"));
+    }
+
+    @Test
+    public void compactionMovesLiveRecordsAndDeletesDeadPacks() throws IOException, InterruptedException
+    {
+        store.close();
+        store = open(dir, APP_VERSION, 4096);
+
+        // Rewriting the same keys leaves the sealed packs dead
+        for (int round = 0; round < 20; round++)
+        {
+            for (int i = 0; i < 8; i++)
+                write(store, "key" + i, value("key" + i + "-" + round, 500));
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (packFiles(dir).length > 4)
+        {
+            assertTrue("Packs not compacted", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        for (int i = 0; i < 8; i++)
+            assertArrayEquals(value("key" + i + "-19", 500), read(store, "key" + i));
+
+        store.close();
+        store = open(dir, APP_VERSION, 4096);
+        for (int i = 0; i < 8; i++)
+            assertArrayEquals(value("key" + i + "-19", 500), read(store, "key" + i));
+    }
+
+    private void awaitDeleted(File file) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (file.exists())
+        {
+            assertTrue(file + " not deleted", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The removal record is in a pack compacted away while the removed record's pack stays
+     */
+    @Test
+    public void removalsSurviveCompactionAndAFullReplay() throws IOException, InterruptedException
+    {
+        store.close();
+        store = open(dir, APP_VERSION, 4096);
+
+        // Pack 0, all but one of them stay
+        write(store, "removed", value("removed", 500));
+        for (int i = 0; i < 7; i++)
+            write(store, "kept" + i, value("kept" + i, 500));
+
+        // Pack 1, the removal record and records all replaced, compacted once pack 2 is started
+        assertTrue(store.remove("removed"));
+        for (int i = 0; i < 9; i++)
+            write(store, "replaced", value("replaced-" + i, 500));
+        awaitDeleted(new File(dir, "pack-1.pack"));
+
+        store.close();
+        store = open(dir, APP_VERSION, 4096);
+        assertFalse(store.contains("removed"));
+
+        store.close();
+        new File(dir, "index").delete();
+        store = open(dir, APP_VERSION, 4096);
+        assertFalse(store.contains("removed"));
+        assertArrayEquals(value("kept0", 500), read(store, "kept0"));
+        assertArrayEquals(value("replaced-8", 500), read(store, "replaced"));
+    }
+
+    /**
+     * Evicted out of append order, a replay evicting by append order would bring it back
+     */
+    @Test
+    public void evictionsSurviveAFullReplay() throws IOException
+    {
+        store.close();
+        store = new PackFileStore(dir, APP_VERSION, VALUE_COUNT, 1300, PackFileStore.DEFAULT_PACK_SIZE);
+        write(store, "a", value("a", 600));
+        write(store, "b", value("b", 600));
+        read(store, "a");
+        write(store, "c", value("c", 600));
+        assertFalse(store.contains("b"));
+        store.close();
+
+        new File(dir, "index").delete();
+        store = new PackFileStore(dir, APP_VERSION, VALUE_COUNT, 1300, PackFileStore.DEFAULT_PACK_SIZE);
+        assertFalse(store.contains("b"));
+        assertArrayEquals(value("a", 600), read(store, "a"));
+        assertArrayEquals(value("c", 600), read(store, "c"));
+    }
+
+    @Test
+    public void anotherAppVersionStartsOverEmpty() throws IOException
+    {
+        write(store, "a", value("a", 100));
+        store.close();
+
+        store = open(dir, APP_VERSION + 1, PackFileStore.DEFAULT_PACK_SIZE);
+        assertFalse(store.contains("a"));
+        assertEquals(0, packFiles(dir).length);
+
+        write(store, "a", value("a", 10));
+        store.close();
+        store = open(dir, APP_VERSION + 1, PackFileStore.DEFAULT_PACK_SIZE);
+        assertArrayEquals(value("a", 10), read(store, "a"));
+    }
+
+    @Test
+    public void anInterruptedReaderDoesNotBreakTheStore() throws IOException
+    {
+        write(store, "a", value("a", 100));
+
+        DiskStore.Snapshot snapshot = store.get("a");
+        InputStream in = snapshot.getInputStream(0);
+        Thread.currentThread().interrupt();
+        try {
+            assertArrayEquals(value("a", 100), IOUtils.toByteArray(in));
+        }
+        finally {
+            Thread.interrupted();
+            snapshot.close();
+        }
+
+        write(store, "b", value("b", 200));
+        assertArrayEquals(value("a", 100), read(store, "a"));
+        assertArrayEquals(value("b", 200), read(store, "b"));
+    }
+}
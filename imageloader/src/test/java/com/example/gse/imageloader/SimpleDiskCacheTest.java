@@ -0,0 +1,250 @@
+package com.example.gse.imageloader;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Caches written by earlier versions, two values per entry, keys without leading zeros and
+ * Java-serialized metadata, are read as they are. Variants do not outlive their original.
+ */
+public class SimpleDiskCacheTest
+{
+    private static final int APP_VERSION = 1;
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final byte[] IMAGE = "not really a jpeg".getBytes();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write an entry the way SimpleDiskCache did before keys were fixed width and metadata had
+     * its own codec
+     */
+    private static void writeLegacyEntry(File dir, String legacyKey, HashMap<String, Serializable> metadata)
+            throws IOException
+    {
+        DiskLruCache cache = DiskLruCache.open(dir, APP_VERSION, 2, MAX_SIZE);
+        DiskLruCache.Editor editor = cache.edit(legacyKey);
+        OutputStream value = editor.newOutputStream(0);
+        value.write(IMAGE);
+        value.close();
+        OutputStream metadataStream = editor.newOutputStream(1);
+        metadataStream.write(MetadataCodecTest.javaSerialized(metadata));
+        metadataStream.close();
+        editor.commit();
+        cache.close();
+    }
+
+    @Test
+    public void readsEntriesOfTheLegacyLayout() throws IOException, NoSuchAlgorithmException
+    {
+        File dir = folder.newFolder();
+        String url = DiskCacheKeysTest.urlWithLeadingZeros(new DiskCacheKeys(), 1);
+        String legacyKey = DiskCacheKeysTest.legacyKey(url);
+        assertTrue(legacyKey.length() < 32);
+        writeLegacyEntry(dir, legacyKey, MetadataCodecTest.responseMetadata());
+
+        SimpleDiskCache diskCache = SimpleDiskCache.open(dir, APP_VERSION, MAX_SIZE);
+        try {
+            assertTrue(diskCache.contains(url));
+            assertFalse(diskCache.hasVariant(url, SimpleDiskCache.Variant.THUMBNAIL));
+
+            SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream(url);
+            try {
+                assertArrayEquals(IMAGE, IOUtils.toByteArray(entry.getInputStream()));
+                assertEquals(MetadataCodecTest.responseMetadata(), entry.getMetadata());
+            }
+            finally {
+                entry.close();
+            }
+        }
+        finally {
+            diskCache.close();
+        }
+    }
+
+    @Test
+    public void rewritingALegacyEntryKeepsItsKey() throws IOException, NoSuchAlgorithmException
+    {
+        File dir = folder.newFolder();
+        String url = DiskCacheKeysTest.urlWithLeadingZeros(new DiskCacheKeys(), 1);
+        writeLegacyEntry(dir, DiskCacheKeysTest.legacyKey(url), MetadataCodecTest.responseMetadata());
+
+        SimpleDiskCache diskCache = SimpleDiskCache.open(dir, APP_VERSION, MAX_SIZE);
+        try {
+            HashMap<String, Serializable> metadata = new HashMap<>();
+            metadata.put(SimpleDiskCache.METADATA_ETAG, "\"v2\"");
+            diskCache.put(url, "rewritten", metadata);
+
+            SimpleDiskCache.StringEntry entry = diskCache.getString(url);
+            assertEquals("rewritten", entry.getString());
+            assertEquals(metadata, entry.getMetadata());
+            assertEquals(1, dir.list(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".0");
+                }
+            }).length);
+        }
+        finally {
+            diskCache.close();
+        }
+    }
+
+    @Test
+    public void entriesOfEitherEngineSurviveReopening() throws IOException
+    {
+        for (SimpleDiskCache.Engine engine : SimpleDiskCache.Engine.values())
+        {
+            File dir = folder.newFolder();
+            SimpleDiskCache diskCache = SimpleDiskCache.open(dir, APP_VERSION, MAX_SIZE, engine);
+            diskCache.put("https://images.example.com/a.jpg", new ByteArrayInputStream(IMAGE));
+            diskCache.close();
+
+            // A cache directory is opened once per process, reopen it under another name
+            File moved = new File(folder.getRoot(), dir.getName() + "-reopened");
+            assertTrue(dir.renameTo(moved));
+            diskCache = SimpleDiskCache.open(moved, APP_VERSION, MAX_SIZE, engine);
+            try {
+                SimpleDiskCache.InputStreamEntry entry = diskCache.getInputStream("https://images.example.com/a.jpg");
+                assertArrayEquals(engine.name(), IMAGE, entry.getBytes());
+                entry.close();
+            }
+            finally {
+                diskCache.close();
+            }
+        }
+    }
+
+    private static DiskStore openStore(SimpleDiskCache.Engine engine, File dir) throws IOException
+    {
+        if (engine == SimpleDiskCache.Engine.PACK_FILE)
+            return new PackFileStore(dir, APP_VERSION, 2, MAX_SIZE, PackFileStore.DEFAULT_PACK_SIZE);
+        return new DiskLruStore(dir, APP_VERSION, 2, MAX_SIZE);
+    }
+
+    private static void write(DiskStore store, String key, byte[] value) throws IOException
+    {
+        DiskStore.Editor editor = store.edit(key);
+        OutputStream out = editor.newOutputStream(0);
+        out.write(value);
+        out.close();
+        editor.newOutputStream(1).close();
+        editor.commit();
+    }
+
+    /**
+     * Variants of a rewritten original are removed, they must not come back with the store
+     */
+    @Test
+    public void removedEntriesStayRemovedAfterReopening() throws IOException
+    {
+        for (SimpleDiskCache.Engine engine : SimpleDiskCache.Engine.values())
+        {
+            File dir = folder.newFolder();
+            DiskStore store = openStore(engine, dir);
+            write(store, "kept", IMAGE);
+            write(store, "removed_thumb", IMAGE);
+            assertTrue(store.remove("removed_thumb"));
+            assertFalse(engine.name(), store.contains("removed_thumb"));
+            assertFalse(store.remove("removed_thumb"));
+
+            DiskStore.Editor editor = store.edit("kept");
+            assertFalse("Being edited", store.remove("kept"));
+            editor.abort();
+            store.close();
+
+            store = openStore(engine, dir);
+            try {
+                assertTrue(engine.name(), store.contains("kept"));
+                assertFalse(engine.name(), store.contains("removed_thumb"));
+                assertEquals(-1, store.getSize("removed_thumb"));
+            }
+            finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * A variant decoded from the original before a rewrite must not be stored after it
+     */
+    @Test
+    public void aVariantOfARewrittenOriginalIsDropped() throws IOException
+    {
+        SimpleDiskCache diskCache = SimpleDiskCache.open(folder.newFolder(), APP_VERSION, MAX_SIZE);
+        try {
+            String url = "https://images.example.com/a.jpg";
+            diskCache.put(url, new ByteArrayInputStream(IMAGE));
+            long writeGeneration = diskCache.getWriteGeneration(url);
+
+            // New freshness only, the value and its variants stay valid
+            diskCache.putMetadata(url, new HashMap<String, Serializable>());
+            assertEquals(writeGeneration, diskCache.getWriteGeneration(url));
+
+            diskCache.put(url, new ByteArrayInputStream("the new image".getBytes()));
+            assertTrue(writeGeneration != diskCache.getWriteGeneration(url));
+            // Refused before the bitmap is compressed
+            assertFalse(diskCache.putVariant(url, SimpleDiskCache.Variant.THUMBNAIL, null, writeGeneration));
+            assertFalse(diskCache.hasVariant(url, SimpleDiskCache.Variant.THUMBNAIL));
+        }
+        finally {
+            diskCache.close();
+        }
+    }
+
+    @Test
+    public void variantsOfAnEvictedOriginalAreRemoved() throws IOException
+    {
+        long maxSize = 1024;
+        String url = "https://images.example.com/a.jpg";
+        String internalKey = new DiskCacheKeys().toInternalKey(url);
+        String variantKey = internalKey + "_thumb";
+
+        for (SimpleDiskCache.Engine engine : SimpleDiskCache.Engine.values())
+        {
+            File dir = folder.newFolder();
+            DiskStore store = openStore(engine, dir);
+            write(store, internalKey, IMAGE);
+            write(store, variantKey, IMAGE);
+            store.close();
+
+            SimpleDiskCache diskCache = SimpleDiskCache.open(dir, APP_VERSION, maxSize, engine);
+            try {
+                assertTrue(diskCache.hasVariant(url, SimpleDiskCache.Variant.THUMBNAIL));
+                // Room for it and the variant, the original is the least recently used
+                diskCache.put("https://images.example.com/b.jpg", new ByteArrayInputStream(new byte[990]));
+                assertFalse(engine.name(), diskCache.contains(url));
+            }
+            finally {
+                diskCache.close();
+            }
+
+            store = openStore(engine, dir);
+            try {
+                assertFalse(engine.name(), store.contains(variantKey));
+            }
+            finally {
+                store.close();
+            }
+        }
+    }
+}
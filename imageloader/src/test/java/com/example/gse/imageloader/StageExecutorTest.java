@@ -0,0 +1,249 @@
+package com.example.gse.imageloader;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StageExecutorTest
+{
+    private StageExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void runsHigherPriorityFirstThenNewestFirst() throws InterruptedException
+    {
+        executor = new StageExecutor(1, 8, true, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.enqueue(new StageExecutor.Stage(block(started, release, null), 0, 0, null));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        executor.enqueue(new StageExecutor.Stage(record(order, "low-1"), 0, 1, null));
+        executor.enqueue(new StageExecutor.Stage(record(order, "normal-2"), 1, 2, null));
+        executor.enqueue(new StageExecutor.Stage(record(order, "low-3"), 0, 3, null));
+        executor.enqueue(new StageExecutor.Stage(record(order, "high-4"), 2, 4, null));
+        executor.enqueue(new StageExecutor.Stage(record(order, "normal-5"), 1, 5, null));
+        release.countDown();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("high-4", "normal-5", "normal-2", "low-3", "low-1"), order);
+    }
+
+    @Test
+    public void reorderMovesAQueuedStage() throws InterruptedException
+    {
+        executor = new StageExecutor(1, 8, true, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.enqueue(new StageExecutor.Stage(block(started, release, null), 0, 0, null));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        StageExecutor.Stage older = new StageExecutor.Stage(record(order, "older"), 0, 1, null);
+        executor.enqueue(older);
+        executor.enqueue(new StageExecutor.Stage(record(order, "newer"), 0, 2, null));
+        // A view bound again to the older one's url
+        executor.reorder(older, 0, 3);
+        release.countDown();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("older", "newer"), order);
+    }
+
+    @Test
+    public void fullQueueDropsTheLowestRankedStage() throws InterruptedException
+    {
+        executor = new StageExecutor(1, 2, true, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.enqueue(new StageExecutor.Stage(block(started, release, null), 0, 0, null));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch oldestDropped = new CountDownLatch(1);
+        CountDownLatch lowDropped = new CountDownLatch(1);
+        executor.enqueue(new StageExecutor.Stage(record(order, "oldest"), 1, 1, countDown(oldestDropped)));
+        executor.enqueue(new StageExecutor.Stage(record(order, "older"), 1, 2, null));
+        executor.enqueue(new StageExecutor.Stage(record(order, "newest"), 1, 3, null));
+        // Ranks below everything queued, dropped itself
+        executor.enqueue(new StageExecutor.Stage(record(order, "low"), 0, 4, countDown(lowDropped)));
+        assertEquals(0, oldestDropped.getCount());
+        assertEquals(0, lowDropped.getCount());
+        release.countDown();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("newest", "older"), order);
+    }
+
+    @Test
+    public void queuedCountLeavesOutRunningAndRemovedStages() throws InterruptedException
+    {
+        executor = new StageExecutor(1, 2, true, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.enqueue(new StageExecutor.Stage(block(started, release, null), 0, 0, null));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.getQueuedCount());
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        executor.enqueue(new StageExecutor.Stage(record(order, "oldest"), 1, 1, null));
+        StageExecutor.Stage older = new StageExecutor.Stage(record(order, "older"), 1, 2, null);
+        executor.enqueue(older);
+        StageExecutor.Stage newest = new StageExecutor.Stage(record(order, "newest"), 1, 3, null);
+        // The queue is full, the oldest is dropped for it
+        executor.enqueue(newest);
+        assertEquals(2, executor.getQueuedCount());
+
+        executor.cancel(older);
+        assertEquals(1, executor.getQueuedCount());
+        executor.reorder(newest, 2, 4);
+        assertEquals(1, executor.getQueuedCount());
+        release.countDown();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.getQueuedCount());
+    }
+
+    @Test
+    public void stageThatThrowsIsReportedToItsOwner() throws InterruptedException
+    {
+        executor = new StageExecutor(1, 8, true, Executors.defaultThreadFactory());
+        final CountDownLatch abandoned = new CountDownLatch(1);
+
+        executor.enqueue(new StageExecutor.Stage(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Thrown by the test");
+            }
+        }, 0, 0, countDown(abandoned)));
+
+        assertTrue(abandoned.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getFailureCount());
+    }
+
+    @Test
+    public void stageThatThrowsOnTheCallerIsReportedToItsOwner() throws InterruptedException
+    {
+        executor = new StageExecutor(1, 1, false, Executors.defaultThreadFactory());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.enqueue(new StageExecutor.Stage(block(started, release, null), 0, 0, null));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.enqueue(new StageExecutor.Stage(block(null, release, null), 0, 1, null));
+
+        // The queue is full, the caller runs the stage
+        final AtomicBoolean abandonedOnCaller = new AtomicBoolean();
+        final Thread caller = Thread.currentThread();
+        executor.enqueue(new StageExecutor.Stage(new Runnable() {
+            @Override
+            public void run() {
+                throw new OutOfMemoryError("Thrown by the test");
+            }
+        }, 0, 2, new Runnable() {
+            @Override
+            public void run() {
+                abandonedOnCaller.set(Thread.currentThread() == caller);
+            }
+        }));
+
+        assertTrue(abandonedOnCaller.get());
+        assertEquals(1, executor.getFailureCount());
+        release.countDown();
+    }
+
+    @Test
+    public void cancelDoesNotInterruptARunningStage() throws InterruptedException
+    {
+        executor = new StageExecutor(1, 8, true, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        StageExecutor.Stage stage = new StageExecutor.Stage(block(started, release, interrupted), 0, 0, null);
+
+        executor.enqueue(stage);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.cancel(stage);
+        release.countDown();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(interrupted.get());
+    }
+
+    static Runnable record(final List<String> order, final String name)
+    {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    static Runnable countDown(final CountDownLatch latch)
+    {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    /**
+     *
+     * @param started counted down once the stage runs, may be null
+     * @param release the stage returns once it is counted down
+     * @param interrupted set if the stage was interrupted while it waited, may be null
+     * @return
+     */
+    static Runnable block(final CountDownLatch started, final CountDownLatch release, final AtomicBoolean interrupted)
+    {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (started != null)
+                    started.countDown();
+                while (true)
+                {
+                    try {
+                        release.await();
+                        return;
+                    }
+                    catch (InterruptedException e) {
+                        if (interrupted != null)
+                            interrupted.set(true);
+                    }
+                }
+            }
+        };
+    }
+}